@@ -0,0 +1,58 @@
+package ts.mcmapexporter;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Combining every Overworld map of the corpus. The pixels of the maps are
+// released after drawing, so each operation reads them from disk again like
+// a real export does.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CombineBenchmark {
+
+	@Param({ "0", "2", "4" })
+	public int scale;
+
+	@Param({ "1", "4" })
+	public int threads;
+
+	private Path directory;
+	private MapCollection maps;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		directory = new CorpusGenerator().writeTemporary();
+		maps = new MapCollection(directory, Map.OVERWORLD, threads);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		CorpusGenerator.delete(directory);
+	}
+
+	@Benchmark
+	public void combine(Blackhole blackhole) {
+		blackhole.consume(maps.combine(scale));
+	}
+
+}
@@ -0,0 +1,179 @@
+package ts.mcmapexporter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+// Writes a directory of gzipped map files like the ones minecraft writes. The
+// same settings always give the same files, including their modification
+// times, so every run is measured on the same corpus.
+class CorpusGenerator {
+
+	public int nMaps = 256;
+	// The maps are placed between -spread and spread blocks on both axes
+	public int spread = 4096;
+	// scaleWeights[s] is how likely it is that a map has scale s
+	public int[] scaleWeights = { 8, 4, 2, 1, 1 };
+	// Part of the maps in the Nether and in the End, the rest is Overworld
+	public double netherPart = 0.1;
+	public double endPart = 0.05;
+	// Part of the pixels that are unexplored
+	public double unexploredPart = 0.2;
+	public long seed = 1;
+
+	// Width and height of a map item in pixels
+	private static final int MAP_SIZE = 128;
+	private static final long FIRST_MODIFIED = 1400000000000L;
+
+	public void write(Path directory) throws IOException {
+		File dir = directory.toFile();
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Could not create " + dir);
+		Random random = new Random(seed);
+		int totalWeight = 0;
+		for (int weight : scaleWeights) {
+			totalWeight += weight;
+		}
+		byte[] colors = new byte[MAP_SIZE * MAP_SIZE];
+		for (int i = 0; i < nMaps; ++i) {
+			int pick = random.nextInt(totalWeight);
+			int scale = 0;
+			while (pick >= scaleWeights[scale]) {
+				pick -= scaleWeights[scale++];
+			}
+			double d = random.nextDouble();
+			int dimension = d < netherPart ? Map.NETHER
+					: d < netherPart + endPart ? Map.THE_END : Map.OVERWORLD;
+			int centerX = alignedCenter(random.nextInt(2 * spread) - spread,
+					scale);
+			int centerZ = alignedCenter(random.nextInt(2 * spread) - spread,
+					scale);
+			fillColors(random, colors);
+			File file = new File(dir, "map_" + i + ".dat");
+			writeMap(file, scale, dimension, centerX, centerZ, colors);
+			// A few maps share a modification time, like maps saved together
+			file.setLastModified(FIRST_MODIFIED + (i / 4) * 1000L);
+		}
+	}
+
+	// The settings as one line of text, the same settings give the same text.
+	public String describe() {
+		StringBuilder text = new StringBuilder();
+		text.append("maps=").append(nMaps);
+		text.append(" spread=").append(spread);
+		text.append(" scales=");
+		for (int i = 0; i < scaleWeights.length; ++i) {
+			text.append(i > 0 ? "," : "").append(scaleWeights[i]);
+		}
+		text.append(" nether=").append(netherPart);
+		text.append(" end=").append(endPart);
+		text.append(" unexplored=").append(unexploredPart);
+		text.append(" seed=").append(seed);
+		return text.toString();
+	}
+
+	// Writes the corpus to a new temporary directory.
+	public Path writeTemporary() throws IOException {
+		Path directory = Files.createTempDirectory("mcmapexporter-corpus");
+		write(directory);
+		return directory;
+	}
+
+	// Deletes a directory written by write, with everything in it.
+	public static void delete(Path directory) throws IOException {
+		File[] files = directory.toFile().listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			Files.deleteIfExists(file.toPath());
+		}
+		Files.deleteIfExists(directory);
+	}
+
+	// Minecraft places maps on a grid of their own size, offset by 64 blocks.
+	private static int alignedCenter(int x, int scale) {
+		int size = MAP_SIZE << scale;
+		return Math.floorDiv(x + 64, size) * size + size / 2 - 64;
+	}
+
+	// Patches of the same base color with varying shades, which compresses
+	// about as well as real terrain.
+	private void fillColors(Random random, byte[] colors) {
+		int patchSize = 8 << random.nextInt(3);
+		int patchesPerRow = MAP_SIZE / patchSize;
+		int[] patchColors = new int[patchesPerRow * patchesPerRow];
+		for (int i = 0; i < patchColors.length; ++i) {
+			patchColors[i] = random.nextDouble() < unexploredPart ? 0
+					: 1 + random.nextInt(35);
+		}
+		for (int z = 0; z < MAP_SIZE; ++z) {
+			for (int x = 0; x < MAP_SIZE; ++x) {
+				int base = patchColors[(z / patchSize) * patchesPerRow + x
+						/ patchSize];
+				colors[z * MAP_SIZE + x] = (byte) (base == 0 ? 0 : Map
+						.makeColorId(base, random.nextInt(4)));
+			}
+		}
+	}
+
+	private static void writeMap(File file, int scale, int dimension,
+			int centerX, int centerZ, byte[] colors) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new GZIPOutputStream(
+						new FileOutputStream(file))))) {
+			out.writeByte(NbtReader.TAG_COMPOUND);
+			out.writeUTF("");
+			out.writeByte(NbtReader.TAG_COMPOUND);
+			out.writeUTF("data");
+			out.writeByte(NbtReader.TAG_BYTE);
+			out.writeUTF("scale");
+			out.writeByte(scale);
+			out.writeByte(NbtReader.TAG_BYTE);
+			out.writeUTF("dimension");
+			out.writeByte(dimension);
+			out.writeByte(NbtReader.TAG_SHORT);
+			out.writeUTF("width");
+			out.writeShort(MAP_SIZE);
+			out.writeByte(NbtReader.TAG_SHORT);
+			out.writeUTF("height");
+			out.writeShort(MAP_SIZE);
+			out.writeByte(NbtReader.TAG_INT);
+			out.writeUTF("xCenter");
+			out.writeInt(centerX);
+			out.writeByte(NbtReader.TAG_INT);
+			out.writeUTF("zCenter");
+			out.writeInt(centerZ);
+			out.writeByte(NbtReader.TAG_BYTE_ARRAY);
+			out.writeUTF("colors");
+			out.writeInt(colors.length);
+			out.write(colors);
+			out.writeByte(NbtReader.TAG_END);
+			out.writeByte(NbtReader.TAG_END);
+		}
+	}
+
+	// Arguments: <directory> [<number of maps> [<spread> [<seed>]]]
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("Usage: CorpusGenerator <directory>"
+					+ " [<number of maps> [<spread> [<seed>]]]");
+			return;
+		}
+		CorpusGenerator generator = new CorpusGenerator();
+		if (args.length > 1)
+			generator.nMaps = Integer.parseInt(args[1]);
+		if (args.length > 2)
+			generator.spread = Integer.parseInt(args[2]);
+		if (args.length > 3)
+			generator.seed = Long.parseLong(args[3]);
+		generator.write(new File(args[0]).toPath());
+		System.out.println(generator.nMaps + " maps written to " + args[0]);
+	}
+
+}
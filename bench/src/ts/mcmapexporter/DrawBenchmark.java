@@ -0,0 +1,68 @@
+package ts.mcmapexporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Drawing one map onto a combined map that covers it, for different scales
+// of the map and of the combined map.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DrawBenchmark {
+
+	// <scale of the map>:<scale of the combined map>
+	@Param({ "0:0", "2:2", "2:0", "4:0", "0:2", "0:4" })
+	public String scales;
+
+	private Path directory;
+	private Map map;
+	private Map combinedMap;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		String[] parts = scales.split(":");
+		int readScale = Integer.parseInt(parts[0]);
+		int writeScale = Integer.parseInt(parts[1]);
+		CorpusGenerator generator = new CorpusGenerator();
+		generator.nMaps = 1;
+		generator.netherPart = 0;
+		generator.endPart = 0;
+		generator.scaleWeights = new int[readScale + 1];
+		generator.scaleWeights[readScale] = 1;
+		directory = generator.writeTemporary();
+		map = new Map(new File(directory.toFile(), "map_0.dat"),
+				new Map.ReadResult());
+		combinedMap = new Map(map.getBeginX(), map.getBeginZ(),
+				map.getEndX(), map.getEndZ(), writeScale);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		CorpusGenerator.delete(directory);
+	}
+
+	@Benchmark
+	public void drawToMap() {
+		map.drawToMap(combinedMap);
+	}
+
+}
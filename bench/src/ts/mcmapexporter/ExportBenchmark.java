@@ -0,0 +1,65 @@
+package ts.mcmapexporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Writing a combined map to an image file. The png format is written by
+// PngWriter, the others by ImageIO.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ExportBenchmark {
+
+	@Param({ "png", "bmp" })
+	public String format;
+
+	@Param({ "0", "2" })
+	public int scale;
+
+	private Path directory;
+	private Path imageDirectory;
+	private Map combinedMap;
+	private File imageFile;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		Map.setBaseColors();
+		directory = new CorpusGenerator().writeTemporary();
+		combinedMap = new MapCollection(directory, Map.OVERWORLD)
+				.combine(scale);
+		imageDirectory = Files.createTempDirectory("mcmapexporter-image");
+		imageFile = new File(imageDirectory.toFile(), "map." + format);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		CorpusGenerator.delete(directory);
+		CorpusGenerator.delete(imageDirectory);
+	}
+
+	@Benchmark
+	public boolean exportImage() {
+		return combinedMap.exportImage(imageFile, Map.OVERWORLD);
+	}
+
+}
@@ -0,0 +1,81 @@
+package ts.mcmapexporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Reading map files, one file per operation. The files of the corpus are
+// used in turn so the measurement is not of a single file in the cache.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+
+	private Path directory;
+	private File[] files;
+	private int next = 0;
+	private byte[] buffer = new byte[8192];
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		directory = new CorpusGenerator().writeTemporary();
+		files = directory.toFile().listFiles();
+		Arrays.sort(files);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		CorpusGenerator.delete(directory);
+	}
+
+	private File nextFile() {
+		File file = files[next];
+		next = (next + 1) % files.length;
+		return file;
+	}
+
+	// The whole file, header and pixels.
+	@Benchmark
+	public boolean parseMap() throws IOException {
+		return new Map(nextFile(), new Map.ReadResult()).isValid();
+	}
+
+	// Only the header, as when a collection is loaded.
+	@Benchmark
+	public boolean parseHeader() throws IOException {
+		return new Map(nextFile(), new Map.ReadResult(), false).isValid();
+	}
+
+	// Only opening and decompressing the file, without parsing the NBT.
+	@Benchmark
+	public long inflate() throws IOException {
+		long total = 0;
+		try (InputStream in = Map.openMapStream(nextFile())) {
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				total += n;
+			}
+		}
+		return total;
+	}
+
+}
@@ -0,0 +1,303 @@
+package ts.mcmapexporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Runs a whole export of a large generated world through Combiner and checks
+// that it is fast enough and fits in memory. The corpus is written by
+// CorpusGenerator and is kept, so later runs with the same directory do not
+// generate it again. The settings it was generated with are stored next to
+// it, and a corpus with other settings is not used. With -xmx the export runs
+// in a new JVM with that heap size, which is the way to find out if a world
+// can be exported on a given machine.
+//
+// The export uses the options of Combiner, so the index file is written next
+// to the image and a second run reads the headers from it unless -noindex is
+// given. -incremental, -scratch and -metrics are passed on to Combiner.
+//
+// Exits with status 1 if a limit was exceeded or the export failed.
+public class StressTest {
+
+	// Settings, set from the arguments
+	private int nMaps = 100000;
+	private int spread = 1000000;
+	private int[] scaleWeights = { 8, 4, 2, 1, 1 };
+	private long seed = 1;
+	private int scale = 4;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private Path corpus;
+	private Path outFile;
+	private String xmx;
+	private Combiner.Options options = new Combiner.Options();
+	// Limits, 0 means no limit
+	private double minMapsPerSecond = 0;
+	private long maxHeapMB = 0;
+	private double maxSeconds = 0;
+
+	private static final String USAGE = "Usage: StressTest [-maps <n>]"
+			+ " [-spread <blocks>] [-scales <weight of scale 0>,<scale 1>,...]"
+			+ " [-seed <n>] [-scale <output scale>] [-threads <n>]"
+			+ " [-corpus <directory>] [-out <image file>] [-xmx <heap size>]"
+			+ " [-noindex] [-incremental] [-scratch <directory>]"
+			+ " [-metrics <file>]"
+			+ " [-minMapsPerSecond <n>] [-maxHeapMB <n>] [-maxSeconds <n>]";
+
+	// @return false if the arguments are not valid
+	private boolean parseArguments(String[] args) {
+		for (int i = 0; i < args.length; ++i) {
+			// Options without a value
+			if (args[i].equals("-noindex")) {
+				options.useIndex = false;
+				continue;
+			} else if (args[i].equals("-incremental")) {
+				options.incremental = true;
+				continue;
+			}
+			if (i + 1 >= args.length) {
+				return false;
+			}
+			String value = args[++i];
+			switch (args[i - 1]) {
+			case "-maps":
+				nMaps = Integer.parseInt(value);
+				break;
+			case "-spread":
+				spread = Integer.parseInt(value);
+				break;
+			case "-scales":
+				scaleWeights = Combiner.parseScales(value);
+				if (scaleWeights == null)
+					return false;
+				break;
+			case "-seed":
+				seed = Long.parseLong(value);
+				break;
+			case "-scale":
+				scale = Integer.parseInt(value);
+				break;
+			case "-threads":
+				threads = Integer.parseInt(value);
+				break;
+			case "-corpus":
+				corpus = new File(value).toPath();
+				break;
+			case "-out":
+				outFile = new File(value).toPath();
+				break;
+			case "-xmx":
+				xmx = value;
+				break;
+			case "-scratch":
+				options.scratchDirectory = new File(value).toPath();
+				break;
+			case "-metrics":
+				options.metricsFile = new File(value).toPath();
+				break;
+			case "-minMapsPerSecond":
+				minMapsPerSecond = Double.parseDouble(value);
+				break;
+			case "-maxHeapMB":
+				maxHeapMB = Long.parseLong(value);
+				break;
+			case "-maxSeconds":
+				maxSeconds = Double.parseDouble(value);
+				break;
+			default:
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Runs this class again in a new JVM with the heap size, without -xmx.
+	// @return The exit status of the new JVM.
+	private static int runWithHeapSize(String xmx, String[] args)
+			throws IOException, InterruptedException {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin"
+				+ File.separator + "java");
+		command.add("-Xmx" + xmx);
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(StressTest.class.getName());
+		for (int i = 0; i < args.length; ++i) {
+			if (args[i].equals("-xmx")) {
+				++i;
+			} else {
+				command.add(args[i]);
+			}
+		}
+		Process process = new ProcessBuilder(command).inheritIO().start();
+		return process.waitFor();
+	}
+
+	private static long peakHeapBytes(List<MemoryPoolMXBean> pools) {
+		// The pools may peak at different times, so this is an upper bound
+		long peak = 0;
+		for (MemoryPoolMXBean pool : pools) {
+			peak += pool.getPeakUsage().getUsed();
+		}
+		return peak;
+	}
+
+	private static double seconds(long nanos) {
+		return nanos / 1e9;
+	}
+
+	// Generates the corpus if the directory is empty, or checks that it was
+	// generated with the same settings.
+	// @return false if the corpus can not be used, the reason is printed.
+	private boolean prepareCorpus() throws IOException {
+		CorpusGenerator generator = new CorpusGenerator();
+		generator.nMaps = nMaps;
+		generator.spread = spread;
+		generator.scaleWeights = scaleWeights;
+		generator.seed = seed;
+		String settings = generator.describe();
+		Path settingsFile = corpus.resolveSibling(corpus.getFileName()
+				+ ".settings");
+		String[] children = corpus.toFile().list();
+		if (children == null || children.length == 0) {
+			System.out.println("Generating " + nMaps + " maps in " + corpus);
+			long start = System.nanoTime();
+			generator.write(corpus);
+			// Written last, so a corpus that was not finished has none
+			Files.write(settingsFile,
+					settings.getBytes(StandardCharsets.UTF_8));
+			System.out.printf("generate: %.2f s%n",
+					seconds(System.nanoTime() - start));
+			return true;
+		}
+		String stored = null;
+		if (Files.isRegularFile(settingsFile)) {
+			stored = new String(Files.readAllBytes(settingsFile),
+					StandardCharsets.UTF_8).trim();
+		}
+		if (!settings.equals(stored)) {
+			System.out.println("FAILED: " + corpus + " was not generated with"
+					+ " these settings, delete it or use another -corpus");
+			System.out.println("wanted: " + settings);
+			System.out.println("found: "
+					+ (stored == null ? "no " + settingsFile : stored));
+			return false;
+		}
+		System.out.println("Using the existing corpus in " + corpus);
+		return true;
+	}
+
+	// @return true if the export worked and no limit was exceeded
+	private boolean run() throws IOException {
+		if (corpus == null) {
+			StringBuilder weights = new StringBuilder();
+			for (int weight : scaleWeights) {
+				weights.append(weights.length() > 0 ? "." : "").append(weight);
+			}
+			corpus = new File("stress-corpus-" + nMaps + "-" + spread + "-"
+					+ weights + "-" + seed).toPath();
+		}
+		if (outFile == null) {
+			outFile = corpus.resolveSibling(corpus.getFileName() + ".png");
+		}
+		if (!prepareCorpus())
+			return false;
+
+		options.threads = threads;
+		List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+				heapPools.add(pool);
+			}
+		}
+		long start = System.nanoTime();
+		ExportResult result;
+		try {
+			result = Combiner.combineToImages(corpus, "Overworld",
+					new int[] { scale }, outFile, options);
+		} catch (OutOfMemoryError e) {
+			System.out.println("FAILED: out of memory, max heap = "
+					+ (Runtime.getRuntime().maxMemory() >> 20) + " MB");
+			return false;
+		}
+		long end = System.nanoTime();
+		boolean exported = result.success;
+		long peakHeapMB = peakHeapBytes(heapPools) >> 20;
+		double totalSeconds = seconds(end - start);
+		String[] files = corpus.toFile().list();
+		int nFiles = files == null ? 0 : files.length;
+		double mapsPerSecond = nFiles / totalSeconds;
+
+		System.out.println("files = " + nFiles);
+		System.out.println("maps in the Overworld = " + result.nMaps);
+		System.out.println("scale = " + scale + ", threads = " + threads
+				+ ", index = " + options.useIndex + ", incremental = "
+				+ options.incremental);
+		System.out.printf("scan: %.2f s%n",
+				seconds(ExportMetrics.scanNanos.sum()));
+		System.out.printf("combine: %.2f s%n",
+				seconds(ExportMetrics.combineNanos.sum()));
+		System.out.printf("encode: %.2f s%n",
+				seconds(ExportMetrics.encodeNanos.sum()));
+		System.out.printf("total: %.2f s%n", totalSeconds);
+		System.out.printf("maps/s: %.1f%n", mapsPerSecond);
+		System.out.println("peak heap: " + peakHeapMB + " MB of "
+				+ (Runtime.getRuntime().maxMemory() >> 20) + " MB");
+		if (exported) {
+			System.out.println("output size: " + Files.size(outFile)
+					+ " bytes");
+		}
+		Combiner.printMetrics(options.metricsFile);
+
+		boolean passed = true;
+		if (!exported) {
+			System.out.println("FAILED: no image was created"
+					+ (result.message != null ? ", " + result.message : ""));
+			passed = false;
+		}
+		if (minMapsPerSecond > 0 && mapsPerSecond < minMapsPerSecond) {
+			System.out.println("FAILED: maps/s is below " + minMapsPerSecond);
+			passed = false;
+		}
+		if (maxHeapMB > 0 && peakHeapMB > maxHeapMB) {
+			System.out.println("FAILED: peak heap is above " + maxHeapMB
+					+ " MB");
+			passed = false;
+		}
+		if (maxSeconds > 0 && totalSeconds > maxSeconds) {
+			System.out.println("FAILED: took longer than " + maxSeconds
+					+ " s");
+			passed = false;
+		}
+		if (passed) {
+			System.out.println("PASSED");
+		}
+		return passed;
+	}
+
+	public static void main(String[] args) throws Exception {
+		StressTest test = new StressTest();
+		boolean valid;
+		try {
+			valid = test.parseArguments(args);
+		} catch (NumberFormatException e) {
+			valid = false;
+		}
+		if (!valid) {
+			System.out.println(USAGE);
+			System.exit(2);
+		}
+		if (test.xmx != null) {
+			System.exit(runWithHeapSize(test.xmx, args));
+		}
+		System.exit(test.run() ? 0 : 1);
+	}
+
+}
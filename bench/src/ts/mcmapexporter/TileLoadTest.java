@@ -0,0 +1,210 @@
+package ts.mcmapexporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Sends tile requests to a TileServer from several threads and reports how
+// many it answered per second. Without -url a server is started in this JVM
+// on the maps in -corpus, which is generated first if it does not exist.
+// The tiles asked for are picked at random from a square of tiles around
+// tile 0/0, so most of them are served from the cache after a while.
+//
+// Exits with status 1 if requests failed or the server was too slow.
+public class TileLoadTest {
+
+	// Settings, set from the arguments
+	private String url;
+	private Path corpus;
+	private int nMaps = 10000;
+	private int spread = 50000;
+	private int zoom = 2;
+	private int range = 16;
+	private int clients = 8;
+	private int requests = 100000;
+	private long seed = 1;
+	// Limit, 0 means no limit
+	private double minRequestsPerSecond = 0;
+
+	private static final String USAGE = "Usage: TileLoadTest [-url <server>]"
+			+ " [-corpus <directory>] [-maps <n>] [-spread <blocks>]"
+			+ " [-zoom <n>] [-range <tiles>] [-clients <n>]"
+			+ " [-requests <n>] [-seed <n>] [-minRequestsPerSecond <n>]";
+
+	private AtomicLong nextRequest = new AtomicLong();
+	private AtomicLong nFound = new AtomicLong();
+	private AtomicLong nNotFound = new AtomicLong();
+	private AtomicLong nFailed = new AtomicLong();
+
+	// @return false if the arguments are not valid
+	private boolean parseArguments(String[] args) {
+		for (int i = 0; i < args.length; ++i) {
+			if (i + 1 >= args.length) {
+				return false;
+			}
+			String value = args[++i];
+			switch (args[i - 1]) {
+			case "-url":
+				url = value;
+				break;
+			case "-corpus":
+				corpus = new File(value).toPath();
+				break;
+			case "-maps":
+				nMaps = Integer.parseInt(value);
+				break;
+			case "-spread":
+				spread = Integer.parseInt(value);
+				break;
+			case "-zoom":
+				zoom = Integer.parseInt(value);
+				break;
+			case "-range":
+				range = Integer.parseInt(value);
+				break;
+			case "-clients":
+				clients = Integer.parseInt(value);
+				break;
+			case "-requests":
+				requests = Integer.parseInt(value);
+				break;
+			case "-seed":
+				seed = Long.parseLong(value);
+				break;
+			case "-minRequestsPerSecond":
+				minRequestsPerSecond = Double.parseDouble(value);
+				break;
+			default:
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Sends requests until all have been sent, the connection is kept alive
+	// between them by reading every answer to the end.
+	private void sendRequests(long clientSeed) {
+		Random random = new Random(clientSeed);
+		byte[] buffer = new byte[64 * 1024];
+		while (nextRequest.getAndIncrement() < requests) {
+			int x = random.nextInt(range) - range / 2;
+			int y = random.nextInt(range) - range / 2;
+			try {
+				HttpURLConnection connection = (HttpURLConnection) new URL(url
+						+ "/" + zoom + "/" + x + "/" + y + ".png")
+						.openConnection();
+				int status = connection.getResponseCode();
+				InputStream in = status < 400 ? connection.getInputStream()
+						: connection.getErrorStream();
+				if (in != null) {
+					while (in.read(buffer) >= 0) {
+					}
+					in.close();
+				}
+				if (status == 200) {
+					nFound.incrementAndGet();
+				} else if (status == 404) {
+					nNotFound.incrementAndGet();
+				} else {
+					nFailed.incrementAndGet();
+				}
+			} catch (IOException e) {
+				nFailed.incrementAndGet();
+			}
+		}
+	}
+
+	private static double seconds(long nanos) {
+		return nanos / 1e9;
+	}
+
+	// @return true if all requests were answered fast enough
+	private boolean run() throws Exception {
+		TileServer server = null;
+		if (url == null) {
+			if (corpus == null) {
+				corpus = new File("tile-corpus-" + nMaps + "-" + spread + "-"
+						+ seed).toPath();
+			}
+			String[] children = corpus.toFile().list();
+			if (children == null || children.length == 0) {
+				System.out.println("Generating " + nMaps + " maps in "
+						+ corpus);
+				CorpusGenerator generator = new CorpusGenerator();
+				generator.nMaps = nMaps;
+				generator.spread = spread;
+				generator.seed = seed;
+				generator.write(corpus);
+			}
+			server = new TileServer(corpus, Map.OVERWORLD, Math.max(clients,
+					4), 256L << 20);
+			server.loadAll();
+			server.start(0);
+			url = "http://localhost:" + server.getPort();
+		}
+		Thread[] threads = new Thread[clients];
+		long start = System.nanoTime();
+		for (int i = 0; i < clients; ++i) {
+			final long clientSeed = seed + i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					sendRequests(clientSeed);
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long end = System.nanoTime();
+		if (server != null) {
+			server.stop();
+		}
+
+		double requestsPerSecond = requests / seconds(end - start);
+		System.out.println("url = " + url + ", zoom = " + zoom
+				+ ", range = " + range + ", clients = " + clients);
+		System.out.println("found = " + nFound.get() + ", not found = "
+				+ nNotFound.get() + ", failed = " + nFailed.get());
+		System.out.printf("total: %.2f s%n", seconds(end - start));
+		System.out.printf("requests/s: %.1f%n", requestsPerSecond);
+
+		boolean passed = true;
+		if (nFailed.get() > 0) {
+			System.out.println("FAILED: " + nFailed.get()
+					+ " requests failed");
+			passed = false;
+		}
+		if (minRequestsPerSecond > 0
+				&& requestsPerSecond < minRequestsPerSecond) {
+			System.out.println("FAILED: requests/s is below "
+					+ minRequestsPerSecond);
+			passed = false;
+		}
+		if (passed) {
+			System.out.println("PASSED");
+		}
+		return passed;
+	}
+
+	public static void main(String[] args) throws Exception {
+		TileLoadTest test = new TileLoadTest();
+		boolean valid;
+		try {
+			valid = test.parseArguments(args);
+		} catch (NumberFormatException e) {
+			valid = false;
+		}
+		if (!valid) {
+			System.out.println(USAGE);
+			System.exit(2);
+		}
+		System.exit(test.run() ? 0 : 1);
+	}
+
+}
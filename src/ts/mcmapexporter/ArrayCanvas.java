@@ -0,0 +1,81 @@
+package ts.mcmapexporter;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+// A canvas that keeps all pixels in one array, used for the maps read from
+// files.
+class ArrayCanvas implements Canvas {
+
+	private int width;
+	private int height;
+	private byte[] pixels;
+
+	public ArrayCanvas(int width, int height) {
+		this(width, height, new byte[width * height]);
+	}
+
+	// Uses pixels as the storage, it must hold at least width * height
+	// pixels.
+	public ArrayCanvas(int width, int height, byte[] pixels) {
+		assert (pixels.length >= width * height);
+		this.width = width;
+		this.height = height;
+		this.pixels = pixels;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public byte get(int x, int z) {
+		return pixels[x + z * width];
+	}
+
+	public void set(int x, int z, byte pixel) {
+		pixels[x + z * width] = pixel;
+	}
+
+	public void readRow(int x, int z, byte[] dst, int offset, int len) {
+		System.arraycopy(pixels, x + z * width, dst, offset, len);
+	}
+
+	public void writeRow(int x, int z, byte[] src, int offset, int len) {
+		System.arraycopy(src, offset, pixels, x + z * width, len);
+	}
+
+	public void writeRowExplored(int x, int z, byte[] src, int offset,
+			int len) {
+		int start = x + z * width - offset;
+		for (int i = offset; i < offset + len; ++i) {
+			if (src[i] != 0) {
+				pixels[start + i] = src[i];
+			}
+		}
+	}
+
+	public void clearRect(int beginX, int beginZ, int endX, int endZ) {
+		for (int z = beginZ; z < endZ; ++z) {
+			java.util.Arrays.fill(pixels, beginX + z * width, endX + z * width,
+					(byte) 0);
+		}
+	}
+
+	public void copyTo(byte[] dst) {
+		System.arraycopy(pixels, 0, dst, 0, width * height);
+	}
+
+	public void write(DataOutputStream out) throws IOException {
+		out.write(pixels, 0, width * height);
+	}
+
+	public void read(DataInputStream in) throws IOException {
+		in.readFully(pixels, 0, width * height);
+	}
+
+}
@@ -0,0 +1,297 @@
+package ts.mcmapexporter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+
+// Exports many worlds in one run. Every world, dimension and scale is a job
+// of its own, and all jobs share one pool of threads. The jobs are queued
+// taking turns between the worlds, so a world with many maps does not keep
+// the others waiting until it is done.
+//
+// The map directory of a world is scanned once, by the first of its jobs to
+// run, and the headers are shared by all its jobs. A job reserves the memory
+// its combined map needs before combining, so jobs wait when running them
+// all at once would need more than the memory budget.
+//
+// The images are named <world>_<dimension>_s<scale>.png and a summary with
+// one line per job is written to summary.txt in the output directory.
+class BatchExporter {
+
+	// Added to the size of the combined map for what else a job holds
+	private static final long JOB_OVERHEAD_BYTES = 1 << 20;
+	private static final int MB_SHIFT = 20;
+
+	private static final int[] DIMENSIONS = { Map.OVERWORLD, Map.NETHER,
+			Map.THE_END };
+	private static final String[] DIMENSION_NAMES = { "Overworld", "Nether",
+			"End" };
+
+	// Memory that the jobs reserve before combining, counted in MB. The
+	// reservations are granted in the order they were asked for, so a large
+	// job is not kept waiting by smaller ones that keep coming after it.
+	private static class MemoryBudget {
+		private int totalMB;
+		private Semaphore available;
+
+		public MemoryBudget(long totalBytes) {
+			totalMB = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+					totalBytes >> MB_SHIFT));
+			available = new Semaphore(totalMB, true);
+		}
+
+		// Waits until the memory is available. A job that needs more than
+		// the whole budget gets all of it, and so runs alone.
+		// @return The MB reserved, to be given to release.
+		public int reserve(long bytes) throws InterruptedException {
+			long mb = (bytes + (1 << MB_SHIFT) - 1) >> MB_SHIFT;
+			int reserved = (int) Math.min(mb, totalMB);
+			available.acquire(reserved);
+			return reserved;
+		}
+
+		public void release(int reservedMB) {
+			available.release(reservedMB);
+		}
+	}
+
+	private static class World {
+		public String name;
+		public Path directory;
+		// Scans the directory, run by the first job that needs the maps
+		public FutureTask<MapCollection[]> maps;
+
+		public World(String name, final Path directory) {
+			this.name = name;
+			this.directory = directory;
+			maps = new FutureTask<MapCollection[]>(
+					new Callable<MapCollection[]>() {
+						public MapCollection[] call() throws IOException {
+							if (!Files.isDirectory(directory))
+								throw new IOException("Not a directory: "
+										+ directory);
+							return MapCollection.loadDimensions(directory,
+									DIMENSIONS, 1, null,
+									ExportProgress.NONE);
+						}
+					});
+		}
+	}
+
+	private class Job implements Callable<ExportResult> {
+		public World world;
+		public int dimension;
+		public int scale;
+		public Path outFile;
+
+		// @param dimension
+		// Index into DIMENSIONS.
+		public Job(World world, int dimension, int scale) {
+			this.world = world;
+			this.dimension = dimension;
+			this.scale = scale;
+			outFile = Combiner.fileForScale(Combiner.fileForDimension(
+					outDirectory.resolve(world.name + ".png"),
+					DIMENSION_NAMES[dimension]), scale);
+		}
+
+		public ExportResult call() throws Exception {
+			long start = System.nanoTime();
+			ExportResult result = export();
+			result.nanos = System.nanoTime() - start;
+			return result;
+		}
+
+		private ExportResult export() throws Exception {
+			// The job that gets here first scans, the others wait for it
+			world.maps.run();
+			MapCollection maps;
+			try {
+				maps = world.maps.get()[dimension];
+			} catch (ExecutionException e) {
+				return ExportResult.failed("Failed reading files from the"
+						+ " directory: " + e.getCause().getMessage());
+			}
+			ExportResult result = new ExportResult();
+			result.nMaps = maps.getNMaps();
+			int[] bounds = maps.getBounds();
+			if (bounds == null) {
+				// Not an error, most worlds have not been everywhere
+				result.success = true;
+				result.message = "No maps.";
+				return result;
+			}
+			// One byte per pixel of the combined map
+			long width = (bounds[2] - bounds[0]) >> scale;
+			long height = (bounds[3] - bounds[1]) >> scale;
+			int reservedMB = 0;
+			try {
+				Map combinedMap;
+				// The maps of a collection load and release their pixels
+				// while they are drawn, so jobs of the same collection
+				// combine one at a time. The memory is reserved once the
+				// collection is free, so a job waiting for it holds none.
+				synchronized (maps) {
+					reservedMB = memory.reserve(width * height
+							+ JOB_OVERHEAD_BYTES);
+					combinedMap = maps.combine(scale);
+				}
+				result.success = combinedMap.exportImage(outFile.toFile(),
+						DIMENSIONS[dimension]);
+			} finally {
+				memory.release(reservedMB);
+			}
+			if (result.success) {
+				result.files.add(outFile);
+			} else {
+				result.message = "No image was created.";
+			}
+			return result;
+		}
+	}
+
+	private Path outDirectory;
+	private int[] scales;
+	private int threads;
+	private MemoryBudget memory;
+	private List<World> worlds = new ArrayList<World>();
+
+	/**
+	 * @param threads
+	 *            Number of jobs that run at the same time.
+	 * @param memoryBytes
+	 *            The combined maps of the running jobs are kept below this
+	 *            size in total.
+	 */
+	public BatchExporter(Path outDirectory, int[] scales, int threads,
+			long memoryBytes) {
+		this.outDirectory = outDirectory;
+		this.scales = scales;
+		this.threads = threads;
+		this.memory = new MemoryBudget(memoryBytes);
+	}
+
+	/**
+	 * Adds a world by its map directory, the data folder of a save. The world
+	 * is named after the save, the folder that holds the data folder. If two
+	 * worlds have the same name a number is added to the last one.
+	 */
+	public void addWorld(Path directory) {
+		directory = directory.toAbsolutePath().normalize();
+		Path nameFrom = directory;
+		if (directory.getFileName() != null
+				&& directory.getFileName().toString().equals("data")
+				&& directory.getParent() != null) {
+			nameFrom = directory.getParent();
+		}
+		String name = nameFrom.getFileName() == null ? "world" : nameFrom
+				.getFileName().toString();
+		HashSet<String> names = new HashSet<String>();
+		for (World world : worlds) {
+			names.add(world.name);
+		}
+		String unique = name;
+		for (int i = 2; names.contains(unique); ++i) {
+			unique = name + "_" + i;
+		}
+		worlds.add(new World(unique, directory));
+	}
+
+	/**
+	 * Runs all jobs and writes the summary.
+	 *
+	 * @return true if every job worked.
+	 */
+	public boolean run() throws IOException, InterruptedException {
+		Map.setBaseColors();
+		Files.createDirectories(outDirectory);
+		// Taking turns between the worlds, then the dimensions and scales of
+		// each world in the same order.
+		List<Job> jobs = new ArrayList<Job>();
+		int jobsPerWorld = DIMENSIONS.length * scales.length;
+		for (int i = 0; i < jobsPerWorld; ++i) {
+			for (World world : worlds) {
+				jobs.add(new Job(world, i / scales.length, scales[i
+						% scales.length]));
+			}
+		}
+		System.out.println(worlds.size() + " worlds, " + jobs.size()
+				+ " jobs, " + threads + " threads");
+		long start = System.nanoTime();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<ExportResult>> futures = new ArrayList<Future<ExportResult>>();
+		try {
+			for (Job job : jobs) {
+				futures.add(executor.submit(job));
+			}
+			ExportResult[] results = new ExportResult[jobs.size()];
+			boolean success = true;
+			for (int i = 0; i < jobs.size(); ++i) {
+				try {
+					results[i] = futures.get(i).get();
+				} catch (ExecutionException e) {
+					results[i] = ExportResult.failed("Exception: "
+							+ e.getCause());
+					e.getCause().printStackTrace();
+				}
+				success &= results[i].success;
+				printJob(jobs.get(i), results[i]);
+			}
+			System.out.println("Batch done in "
+					+ ((System.nanoTime() - start) / 1000000) + " ms");
+			writeSummary(jobs, results);
+			return success;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static void printJob(Job job, ExportResult result) {
+		String status = result.success ? "done" : "FAILED";
+		System.out.println(job.world.name + " "
+				+ DIMENSION_NAMES[job.dimension] + " scale " + job.scale
+				+ ": " + status + ", " + result.nMaps + " maps, "
+				+ (result.nanos / 1000000) + " ms"
+				+ (result.message != null ? ", " + result.message : ""));
+	}
+
+	// One tab separated line per job:
+	// world dimension scale status maps milliseconds image message
+	private void writeSummary(List<Job> jobs, ExportResult[] results)
+			throws IOException {
+		Path summaryFile = outDirectory.resolve("summary.txt");
+		try (BufferedWriter writer = Files.newBufferedWriter(summaryFile,
+				StandardCharsets.UTF_8)) {
+			writer.write("world\tdimension\tscale\tstatus\tmaps\tms\timage"
+					+ "\tmessage");
+			writer.newLine();
+			for (int i = 0; i < jobs.size(); ++i) {
+				Job job = jobs.get(i);
+				ExportResult result = results[i];
+				writer.write(job.world.name + "\t"
+						+ DIMENSION_NAMES[job.dimension] + "\t" + job.scale
+						+ "\t" + (result.success ? "ok" : "failed") + "\t"
+						+ result.nMaps + "\t" + (result.nanos / 1000000)
+						+ "\t"
+						+ (result.files.isEmpty() ? "" : result.files.get(0))
+						+ "\t"
+						+ (result.message == null ? "" : result.message));
+				writer.newLine();
+			}
+		}
+		System.out.println("Summary written: " + summaryFile);
+	}
+
+}
@@ -0,0 +1,42 @@
+package ts.mcmapexporter;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+// Stores the colorIds of a map, one byte for each pixel. Pixels that have
+// never been written have the unexplored color 0.
+interface Canvas {
+
+	int getWidth();
+
+	int getHeight();
+
+	byte get(int x, int z);
+
+	void set(int x, int z, byte pixel);
+
+	// Copies len pixels of row z, starting at x, into dst.
+	void readRow(int x, int z, byte[] dst, int offset, int len);
+
+	// Copies len pixels from src into row z, starting at x.
+	void writeRow(int x, int z, byte[] src, int offset, int len);
+
+	// Like writeRow but the unexplored pixels in src are skipped, so the
+	// pixels of the canvas under them are kept.
+	void writeRowExplored(int x, int z, byte[] src, int offset, int len);
+
+	// Sets the pixels in the rectangle to the unexplored color.
+	void clearRect(int beginX, int beginZ, int endX, int endZ);
+
+	// Copies all pixels into dst, row by row. dst must have room for
+	// width * height pixels and be filled with zeros.
+	void copyTo(byte[] dst);
+
+	// Writes the pixels in a format that only needs to be understood by read
+	// of the same kind of canvas.
+	void write(DataOutputStream out) throws IOException;
+
+	void read(DataInputStream in) throws IOException;
+
+}
@@ -1,62 +1,687 @@
 package ts.mcmapexporter;
 
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 class Combiner {
 
-	static void combineToImage(Path mapDirectory, String dimension, int scale,
-			Path outFile) {
+	// Settings that have good default values, set from optional arguments.
+	static class Options {
+		// Number of threads used to load the maps.
+		public int threads = Runtime.getRuntime().availableProcessors();
+		// If true the map headers are cached in an index file next to the
+		// output file.
+		public boolean useIndex = true;
+		// If true the combined map is stored next to the output file and only
+		// the parts covered by changed maps are drawn again on the next
+		// export. Requires the index.
+		public boolean incremental = false;
+		// If true the output file is a directory where a pyramid of PNG tiles
+		// is written instead of one image.
+		public boolean tiles = false;
+		// If not null the metrics of the export are written to this file as
+		// JSON.
+		public Path metricsFile = null;
+		// If not null the combined maps keep their pixels in memory mapped
+		// files in this directory instead of on the heap, for maps that are
+		// too large for the heap.
+		public Path scratchDirectory = null;
+		// If not null only the maps in the configuration are exported, in
+		// the dimension of the configuration.
+		public MapConfiguration configuration = null;
+		// Receives the progress of the export and can cancel it.
+		public ExportProgress progress = ExportProgress.NONE;
+	};
+
+	// Used by combineAllDimensions, the names are added to the output files.
+	private static final int[] ALL_DIMENSIONS = { Map.OVERWORLD, Map.NETHER,
+			Map.THE_END };
+	private static final String[] DIMENSION_NAMES = { "Overworld", "Nether",
+			"End" };
+
+	// Exports one dimension on a thread of its own.
+	private static class ExportTask implements Callable<Boolean> {
+		private MapCollection maps;
+		private int[] scales;
+		private Path outFile;
+		private boolean tiles;
+
+		public ExportTask(MapCollection maps, int[] scales, Path outFile,
+				boolean tiles) {
+			this.maps = maps;
+			this.scales = scales;
+			this.outFile = outFile;
+			this.tiles = tiles;
+		}
+
+		public Boolean call() {
+			if (tiles) {
+				return maps.exportTiles(outFile, scales[0]);
+			} else if (scales.length == 1) {
+				return maps.exportImage(outFile, scales[0]);
+			}
+			Path[] files = new Path[scales.length];
+			for (int i = 0; i < scales.length; ++i) {
+				files[i] = fileForScale(outFile, scales[i]);
+			}
+			return maps.exportImages(files, scales);
+		}
+	}
+
+	static ExportResult combineToImage(Path mapDirectory, String dimension,
+			int scale, Path outFile) {
+		return combineToImage(mapDirectory, dimension, scale, outFile,
+				new Options());
+	}
+
+	/**
+	 * Exports the maps of one dimension, or of all if dimension is "All".
+	 * Problems are printed and also given in the result. A cancelled export
+	 * gives a result where cancelled is true.
+	 */
+	static ExportResult combineToImage(Path mapDirectory, String dimension,
+			int scale, Path outFile, Options options) {
+		return combineToImages(mapDirectory, dimension, new int[] { scale },
+				outFile, options);
+	}
+
+	/**
+	 * Exports one image per scale while loading the maps only once. The maps
+	 * are combined at the finest scale and every coarser image is shrunk
+	 * from the one before it, see MapCollection.exportImages. The scale is
+	 * added to the name of each image, map.png becomes map_s2.png for scale
+	 * 2. With only one scale the name is not changed.
+	 */
+	static ExportResult combineToImages(Path mapDirectory, String dimension,
+			int[] scales, Path outFile, Options options) {
+		ExportMetrics.reset();
+		long start = System.nanoTime();
+		ExportResult result;
+		try {
+			if (dimension.equalsIgnoreCase("All")
+					&& (options.configuration == null)) {
+				result = exportAllDimensions(mapDirectory, scales, outFile,
+						options);
+			} else {
+				result = exportDimension(mapDirectory, dimension, scales,
+						outFile, options);
+			}
+		} catch (CancellationException e) {
+			System.out.println("The export was cancelled.");
+			result = ExportResult.cancelled();
+		}
+		result.nanos = System.nanoTime() - start;
+		return result;
+	}
+
+	// Prints the message and gives it as the reason the export failed.
+	private static ExportResult fail(String message) {
+		System.out.println(message);
+		return ExportResult.failed(message);
+	}
+
+	// @return The scales in increasing order without duplicates, or null if
+	// they are not valid, the reason is then printed.
+	private static int[] checkScales(int[] scales, Options options) {
+		scales = scales.clone();
+		java.util.Arrays.sort(scales);
+		// A scale given twice would write the same file twice
+		int n = 0;
+		for (int i = 0; i < scales.length; ++i) {
+			if (n == 0 || scales[i] != scales[n - 1]) {
+				scales[n++] = scales[i];
+			}
+		}
+		scales = java.util.Arrays.copyOf(scales, n);
+		if (scales.length == 0 || scales[0] < 0) {
+			System.out.println("Incorrect scale, it can not be negative");
+			return null;
+		}
+		if (options.tiles && (scales.length > 1)) {
+			System.out.println("Tiles can only be exported at one scale.");
+			return null;
+		}
+		return scales;
+	}
+
+	private static ExportResult exportDimension(Path mapDirectory,
+			String dimension, int[] scales, Path outFile, Options options) {
+		Map.setBaseColors();
+		MapConfiguration configuration = options.configuration;
+		int dimensionInt = configuration != null ? configuration.dimension
+				: parseDimension(dimension);
+		if (dimensionInt == Map.UNKNOWN_DIMENSION) {
+			return fail("Incorrect dimension, use Overworld, Nether, End or All");
+		}
+		scales = checkScales(scales, options);
+		if (scales == null) {
+			return ExportResult.failed("Incorrect scales.");
+		}
+		if (options.incremental && (scales.length > 1)) {
+			System.out.println("Incremental export is not used with"
+					+ " several scales.");
+		}
+		// A map taken out of the configuration would stay in the combined
+		// map, since its file has not changed.
+		boolean incremental = options.incremental;
+		if (incremental && (configuration != null)) {
+			System.out.println("Incremental export is not used with a map"
+					+ " configuration.");
+			incremental = false;
+		}
+		System.out.println("dimension = " + dimensionInt);
+		Path indexFile = MapIndex.indexFileFor(outFile);
+		MapIndex index = options.useIndex ? MapIndex.load(indexFile,
+				mapDirectory) : null;
+		MapCollection maps;
+		try {
+			if (configuration != null) {
+				System.out.println("map configuration = "
+						+ configuration.name);
+				maps = new MapCollection(mapDirectory, configuration,
+						options.threads, index, options.progress);
+			} else {
+				maps = new MapCollection(mapDirectory, dimensionInt,
+						options.threads, index, options.progress);
+			}
+		} catch (java.io.UnsupportedEncodingException e) {
+			return fail("Required character encoding not supported on this sytem!");
+		} catch (java.io.IOException e) {
+			System.out.println("Exception message: " + e.getMessage());
+			e.printStackTrace();
+			return fail("Failed reading files from the directory.");
+		}
+		System.out.println("Number of maps loaded: " + maps.getNMaps());
+		maps.setScratchDirectory(options.scratchDirectory);
+		ExportResult result = new ExportResult();
+		result.nMaps = maps.getNMaps();
+		if (scales.length > 1) {
+			for (int i = 0; i < scales.length; ++i) {
+				result.files.add(fileForScale(outFile, scales[i]));
+			}
+			result.success = maps.exportImages(
+					result.files.toArray(new Path[scales.length]), scales);
+		} else {
+			int scale = scales[0];
+			Path canvasFile = outFile.resolveSibling(outFile.getFileName()
+					+ ".canvas");
+			result.files.add(outFile);
+			if (options.tiles) {
+				result.success = maps.exportTiles(outFile, scale);
+			} else if (incremental && (index != null)) {
+				result.success = maps.exportImageIncremental(outFile, scale,
+						canvasFile, index.getChanges());
+			} else {
+				if (incremental) {
+					System.out.println("Incremental export requires the"
+							+ " index.");
+				}
+				// The index will no longer match a combined map from an
+				// earlier incremental export, which must not be used again.
+				try {
+					java.nio.file.Files.deleteIfExists(canvasFile);
+				} catch (java.io.IOException e) {
+					System.out.println("Exception message: " + e.getMessage());
+					return fail("Failed deleting the combined map of an"
+							+ " earlier export: " + canvasFile);
+				}
+				result.success = maps.exportImage(outFile, scale);
+			}
+		}
+		if (!result.success) {
+			result.files.clear();
+			result.message = "No image was created.";
+			System.out.println(result.message);
+			return result;
+		}
+		for (int i = 0; i < scales.length; ++i) {
+			System.out.println("Image created: " + result.files.get(i)
+					+ " with scale = " + scales[i]);
+		}
+		// The index is saved last, if the export fails the changed maps
+		// will be seen as changed again by the next export.
+		if (index != null) {
+			saveIndex(index, indexFile);
+		}
+		return result;
+	}
+
+	/**
+	 * Exports the Overworld, the Nether and the End from one scan of the
+	 * directory. The dimensions are combined and written at the same time,
+	 * each to a file with the name of the dimension added, map.png becomes
+	 * map_Nether.png for the Nether.
+	 */
+	private static ExportResult exportAllDimensions(Path mapDirectory,
+			int[] scales, Path outFile, Options options) {
 		Map.setBaseColors();
-		int dimensionInt;
+		scales = checkScales(scales, options);
+		if (scales == null) {
+			return ExportResult.failed("Incorrect scales.");
+		}
+		if (options.incremental) {
+			System.out.println("Incremental export is not used with"
+					+ " all dimensions.");
+		}
+		Path indexFile = MapIndex.indexFileFor(outFile);
+		MapIndex index = options.useIndex ? MapIndex.load(indexFile,
+				mapDirectory) : null;
+		MapCollection[] collections;
+		try {
+			collections = MapCollection.loadDimensions(mapDirectory,
+					ALL_DIMENSIONS, options.threads, index, options.progress);
+		} catch (java.io.IOException e) {
+			System.out.println("Exception message: " + e.getMessage());
+			e.printStackTrace();
+			return fail("Failed reading files from the directory.");
+		}
+		ExecutorService executor = Executors
+				.newFixedThreadPool(ALL_DIMENSIONS.length);
+		Path[] files = new Path[ALL_DIMENSIONS.length];
+		ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		ExportResult result = new ExportResult();
+		result.success = true;
+		try {
+			for (int i = 0; i < ALL_DIMENSIONS.length; ++i) {
+				System.out.println("Number of maps loaded in "
+						+ DIMENSION_NAMES[i] + ": "
+						+ collections[i].getNMaps());
+				result.nMaps += collections[i].getNMaps();
+				collections[i].setScratchDirectory(options.scratchDirectory);
+				files[i] = fileForDimension(outFile, DIMENSION_NAMES[i]);
+				if (collections[i].getNMaps() == 0) {
+					results.add(null);
+					continue;
+				}
+				results.add(executor.submit(new ExportTask(collections[i],
+						scales, files[i], options.tiles)));
+			}
+			for (int i = 0; i < ALL_DIMENSIONS.length; ++i) {
+				if (results.get(i) == null)
+					continue;
+				boolean created;
+				try {
+					created = results.get(i).get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof CancellationException) {
+						// The other dimensions see the same cancel
+						throw (CancellationException) e.getCause();
+					}
+					System.out.println("Exception message: "
+							+ e.getCause().getMessage());
+					e.getCause().printStackTrace();
+					created = false;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					created = false;
+				}
+				if (created) {
+					System.out.println(DIMENSION_NAMES[i] + " exported: "
+							+ files[i].toString());
+					result.files.add(files[i]);
+				} else {
+					result.message = "No image was created for "
+							+ DIMENSION_NAMES[i] + ".";
+					System.out.println(result.message);
+					result.success = false;
+				}
+			}
+			if (result.success && (index != null)) {
+				saveIndex(index, indexFile);
+			}
+		} finally {
+			executor.shutdown();
+		}
+		return result;
+	}
+
+	// Adds the dimension name to the file name, before the extension if there
+	// is one.
+	static Path fileForDimension(Path file, String dimensionName) {
+		return addToFileName(file, "_" + dimensionName);
+	}
+
+	// Does nothing if index is null.
+	static void saveIndex(MapIndex index, Path indexFile) {
+		if (index == null)
+			return;
+		try {
+			index.save(indexFile);
+		} catch (java.io.IOException e) {
+			System.out.println("Failed writing map index: " + indexFile);
+			System.out.println("Exception message: " + e.getMessage());
+		}
+	}
+
+	// Adds the scale to the file name, before the extension if there is one.
+	static Path fileForScale(Path file, int scale) {
+		return addToFileName(file, "_s" + scale);
+	}
+
+	private static Path addToFileName(Path file, String suffix) {
+		String name = file.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0) {
+			name = name.substring(0, dot) + suffix + name.substring(dot);
+		} else {
+			name = name + suffix;
+		}
+		return file.resolveSibling(name);
+	}
+
+	// Reads a scale or a comma separated list of scales, like 0,2,4.
+	// @return null if the text is not a list of numbers.
+	static int[] parseScales(String text) {
+		String[] parts = text.split(",");
+		int[] scales = new int[parts.length];
+		try {
+			for (int i = 0; i < parts.length; ++i) {
+				scales[i] = Integer.parseInt(parts[i].trim());
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return scales;
+	}
+
+	// @return The dimension id or Map.UNKNOWN_DIMENSION
+	static int parseDimension(String dimension) {
 		if (dimension.equalsIgnoreCase("Overworld")) {
-			dimensionInt = Map.OVERWORLD;
+			return Map.OVERWORLD;
 		} else if (dimension.equalsIgnoreCase("Nether")) {
-			dimensionInt = Map.NETHER;
-		} else if (dimension.equalsIgnoreCase("End")) {
-			dimensionInt = Map.THE_END;
+			return Map.NETHER;
+		} else if (dimension.equalsIgnoreCase("End")
+				|| dimension.equalsIgnoreCase("The End")) {
+			return Map.THE_END;
 		} else {
+			return Map.UNKNOWN_DIMENSION;
+		}
+	}
+
+	// Prints the maps that cover a block, or a rectangle of blocks. With an
+	// index file only the headers of new or changed files are read, the same
+	// way as the index of an export.
+	// Arguments: query <map directory> <dimension> <x> <z> [<end x> <end z>]
+	// [-index <file>]
+	static void query(String[] args) {
+		FileSystem fs = FileSystems.getDefault();
+		int nArgs = args.length;
+		Path indexFile = null;
+		if (nArgs >= 2 && args[nArgs - 2].equals("-index")) {
+			indexFile = fs.getPath(args[nArgs - 1]);
+			nArgs -= 2;
+		}
+		if (nArgs != 5 && nArgs != 7) {
+			System.out.println("Usage: query <map directory> <dimension>"
+					+ " <x> <z> [<end x> <end z>] [-index <file>]");
+			return;
+		}
+		Path mapDirectory = fs.getPath(args[1]);
+		int dimensionInt = parseDimension(args[2]);
+		if (dimensionInt == Map.UNKNOWN_DIMENSION) {
 			System.out
 					.println("Incorrect dimension, use Overworld, Nether or End");
 			return;
 		}
-		System.out.println("dimension = " + dimensionInt);
+		MapIndex index = indexFile != null ? MapIndex.load(indexFile,
+				mapDirectory) : null;
 		MapCollection maps;
 		try {
-			maps = new MapCollection(mapDirectory, dimensionInt);
-		} catch (java.io.UnsupportedEncodingException e) {
-			System.out
-					.println("Required character encoding not supported on this sytem!");
-			return;
+			maps = new MapCollection(mapDirectory, dimensionInt, Runtime
+					.getRuntime().availableProcessors(), index);
 		} catch (java.io.IOException e) {
 			System.out.println("Failed reading files from the directory.");
 			System.out.println("Exception message: " + e.getMessage());
-			e.printStackTrace();
 			return;
 		}
-		System.out.println("Number of maps loaded: " + maps.getNMaps());
-		boolean res = maps.exportImage(outFile, scale);
-		if (res) {
-			System.out.println("Image created: " + outFile.toString()
-					+ " with scale = " + scale);
+		saveIndex(index, indexFile);
+		maps.getGrid();
+		int x = Integer.parseInt(args[3]);
+		int z = Integer.parseInt(args[4]);
+		long startTime = System.nanoTime();
+		java.util.List<Map> found;
+		if (nArgs == 7) {
+			found = maps.findMaps(x, z, Integer.parseInt(args[5]),
+					Integer.parseInt(args[6]));
 		} else {
-			System.out.println("No image was created.");
+			found = maps.findMaps(x, z);
+		}
+		long time = System.nanoTime() - startTime;
+		// In drawing order, the last map is the one on top.
+		for (Map map : found) {
+			System.out.println(map.getFile().getName() + " scale = "
+					+ map.getScale() + " x = " + map.getBeginX() + " to "
+					+ map.getEndX() + " z = " + map.getBeginZ() + " to "
+					+ map.getEndZ());
+		}
+		System.out.println(found.size() + " of " + maps.getNMaps()
+				+ " maps found in " + (time / 1000) + " microseconds");
+	}
+
+	// Serves the maps as tiles until the program is stopped, see TileServer.
+	// Arguments: serve <map directory> <dimension> [<port>] [-threads <n>]
+	// [-cacheMB <n>]
+	static void serve(String[] args) {
+		if (args.length < 3) {
+			System.out.println("Usage: serve <map directory> <dimension>"
+					+ " [<port>] [-threads <n>] [-cacheMB <n>]");
+			return;
+		}
+		FileSystem fs = FileSystems.getDefault();
+		Path mapDirectory = fs.getPath(args[1]);
+		int dimensionInt = parseDimension(args[2]);
+		if (dimensionInt == Map.UNKNOWN_DIMENSION) {
+			System.out
+					.println("Incorrect dimension, use Overworld, Nether or End");
+			return;
+		}
+		int port = 8080;
+		int threads = Runtime.getRuntime().availableProcessors();
+		long cacheMB = 64;
+		for (int i = 3; i < args.length; ++i) {
+			if (args[i].equals("-threads") && (i + 1 < args.length)) {
+				threads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-cacheMB") && (i + 1 < args.length)) {
+				cacheMB = Long.parseLong(args[++i]);
+			} else if (i == 3) {
+				port = Integer.parseInt(args[i]);
+			} else {
+				System.out.println("Unknown argument: " + args[i]);
+				return;
+			}
+		}
+		// Requests mostly wait for files and sockets, not the processor
+		TileServer server = new TileServer(mapDirectory, dimensionInt,
+				Math.max(threads, 4), cacheMB << 20);
+		try {
+			server.start(port);
+			new MapWatcher(mapDirectory, server).run();
+		} catch (java.io.IOException e) {
+			System.out.println("Failed serving the maps.");
+			System.out.println("Exception message: " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Exports all dimensions of many worlds at several scales, see
+	// BatchExporter. The world list file has the path of one map directory
+	// per line, empty lines and lines starting with # are skipped.
+	// Arguments: batch <world list file> <output directory> [-scales <list>]
+	// [-threads <n>] [-memoryMB <n>]
+	static void batch(String[] args) {
+		if (args.length < 3) {
+			System.out.println("Usage: batch <world list file> <output"
+					+ " directory> [-scales <list>] [-threads <n>]"
+					+ " [-memoryMB <n>]");
+			return;
+		}
+		FileSystem fs = FileSystems.getDefault();
+		int[] scales = { 0 };
+		int threads = Runtime.getRuntime().availableProcessors();
+		long memoryBytes = Runtime.getRuntime().maxMemory() / 2;
+		for (int i = 3; i < args.length; ++i) {
+			if (args[i].equals("-scales") && (i + 1 < args.length)) {
+				scales = parseScales(args[++i]);
+				if (scales != null) {
+					scales = checkScales(scales, new Options());
+				}
+				if (scales == null) {
+					System.out.println("Incorrect scales: " + args[i]);
+					return;
+				}
+			} else if (args[i].equals("-threads") && (i + 1 < args.length)) {
+				threads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-memoryMB") && (i + 1 < args.length)) {
+				memoryBytes = Long.parseLong(args[++i]) << 20;
+			} else {
+				System.out.println("Unknown argument: " + args[i]);
+				return;
+			}
+		}
+		BatchExporter exporter = new BatchExporter(fs.getPath(args[2]),
+				scales, threads, memoryBytes);
+		try {
+			for (String line : java.nio.file.Files.readAllLines(
+					fs.getPath(args[1]), StandardCharsets.UTF_8)) {
+				line = line.trim();
+				if (!line.isEmpty() && !line.startsWith("#")) {
+					exporter.addWorld(fs.getPath(line));
+				}
+			}
+			ExportMetrics.reset();
+			exporter.run();
+			printMetrics(null);
+		} catch (java.io.IOException e) {
+			System.out.println("Batch export failed.");
+			System.out.println("Exception message: " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 	}
 
 	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals("query")) {
+			query(args);
+			return;
+		}
+		if (args.length > 0 && args[0].equals("serve")) {
+			serve(args);
+			return;
+		}
+		if (args.length > 0 && args[0].equals("batch")) {
+			batch(args);
+			return;
+		}
 		if (args.length < 4) {
 			System.out.println("Error: Not enough arguments, see source code.");
+			return;
 		}
 		FileSystem fs = FileSystems.getDefault();
 		Path mapDirectory = fs.getPath(args[0]);
 		String dimension = args[1];
-		int scale = Integer.parseInt(args[2]);
+		int[] scales = parseScales(args[2]);
+		if (scales == null) {
+			System.out.println("Incorrect scale: " + args[2]);
+			return;
+		}
 		Path outFile = fs.getPath(args[3]);
+		Options options = new Options();
+		boolean watch = false;
+		// Optional arguments after the required ones
+		for (int i = 4; i < args.length; ++i) {
+			if (args[i].equals("-threads") && (i + 1 < args.length)) {
+				options.threads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-noindex")) {
+				options.useIndex = false;
+			} else if (args[i].equals("-incremental")) {
+				options.incremental = true;
+			} else if (args[i].equals("-tiles")) {
+				options.tiles = true;
+			} else if (args[i].equals("-metrics") && (i + 1 < args.length)) {
+				options.metricsFile = fs.getPath(args[++i]);
+			} else if (args[i].equals("-scratch") && (i + 1 < args.length)) {
+				options.scratchDirectory = fs.getPath(args[++i]);
+			} else if (args[i].equals("-config") && (i + 1 < args.length)) {
+				try {
+					options.configuration = MapConfiguration.read(fs
+							.getPath(args[++i]));
+				} catch (java.io.IOException e) {
+					System.out.println("Failed reading map configuration: "
+							+ args[i]);
+					System.out.println("Exception message: " + e.getMessage());
+					return;
+				}
+			} else if (args[i].equals("-watch")) {
+				watch = true;
+			} else {
+				System.out.println("Unknown argument: " + args[i]);
+				return;
+			}
+		}
 		System.out.println("map directory = " + mapDirectory);
 		System.out.println("dimension = " + dimension);
-		combineToImage(mapDirectory, dimension, scale, outFile);
+		if (watch) {
+			watch(mapDirectory, dimension, scales, outFile, options);
+			return;
+		}
+		combineToImages(mapDirectory, dimension, scales, outFile, options);
+		printMetrics(options.metricsFile);
+	}
+
+	// Exports an image and keeps it up to date until the program is stopped,
+	// see ImageUpdater.
+	static void watch(Path mapDirectory, String dimension, int[] scales,
+			Path outFile, Options options) {
+		int dimensionInt = parseDimension(dimension);
+		if (dimensionInt == Map.UNKNOWN_DIMENSION) {
+			System.out.println("Watching requires one dimension, use"
+					+ " Overworld, Nether or End");
+			return;
+		}
+		if (scales.length != 1 || scales[0] < 0 || options.tiles) {
+			System.out.println("Watching exports one image at one scale.");
+			return;
+		}
+		if (options.configuration != null) {
+			System.out.println("Watching uses all maps, not a map"
+					+ " configuration.");
+			return;
+		}
+		try {
+			new MapWatcher(mapDirectory, new ImageUpdater(mapDirectory,
+					dimensionInt, scales[0], outFile, options)).run();
+		} catch (java.io.IOException e) {
+			System.out.println("Failed watching the directory.");
+			System.out.println("Exception message: " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Prints the metrics of the export as one line of JSON, and writes them
+	// to metricsFile if it is not null.
+	static void printMetrics(Path metricsFile) {
+		String json = ExportMetrics.toJson();
+		System.out.println("metrics = " + json);
+		if (metricsFile != null) {
+			try {
+				java.nio.file.Files.write(metricsFile,
+						(json + "\n").getBytes(StandardCharsets.UTF_8));
+			} catch (java.io.IOException e) {
+				System.out.println("Failed writing metrics: " + metricsFile);
+				System.out.println("Exception message: " + e.getMessage());
+			}
+		}
 	}
 
 }
@@ -0,0 +1,75 @@
+package ts.mcmapexporter;
+
+// Shrinks rows of pixels by combining squares of 2^shift x 2^shift pixels
+// into one. The result has the most common base color of the square, where a
+// tie goes to the lowest baseColorId, and the shade closest to the average
+// shade of all pixels in the square. Unexplored pixels are counted as base
+// color 0 like any other pixel.
+//
+// All state is kept in primitive arrays that are reused for every square, and
+// only the counts that were used by a square are cleared after it.
+class Downsampler {
+
+	private static final int[] SHADE_VALUES = { Map.shadeIdToValue(0),
+			Map.shadeIdToValue(1), Map.shadeIdToValue(2),
+			Map.shadeIdToValue(3) };
+
+	private int shift;
+	private int size;
+	// One count for every baseColorId a colorId byte can have
+	private int[] counts = new int[256 >> 2];
+	// The baseColorIds counted in the current square
+	private int[] counted;
+
+	public Downsampler(int shift) {
+		this.shift = shift;
+		this.size = 1 << shift;
+		this.counted = new int[Math.min(size * size, counts.length)];
+	}
+
+	/**
+	 * Combines 'size' rows into one.
+	 *
+	 * @param band
+	 *            The rows to combine, row i starts at bandOffset + i *
+	 *            rowStride.
+	 * @param n
+	 *            Number of pixels written to out, the rows must have n *
+	 *            size pixels.
+	 */
+	public void downsampleRow(byte[] band, int bandOffset, int rowStride,
+			byte[] out, int outOffset, int n) {
+		for (int i = 0; i < n; ++i) {
+			int nCounted = 0;
+			int shadeSum = 0;
+			int squareStart = bandOffset + (i << shift);
+			for (int row = 0; row < size; ++row) {
+				int p = squareStart + row * rowStride;
+				for (int j = p; j < p + size; ++j) {
+					int colorId = band[j] & 0xFF;
+					int baseColorId = colorId >> 2;
+					if (counts[baseColorId]++ == 0) {
+						counted[nCounted++] = baseColorId;
+					}
+					shadeSum += SHADE_VALUES[colorId & 0x03];
+				}
+			}
+			int highestRes = 0;
+			int highestCount = 0;
+			for (int k = 0; k < nCounted; ++k) {
+				int baseColorId = counted[k];
+				int count = counts[baseColorId];
+				if (count > highestCount
+						|| (count == highestCount && baseColorId < highestRes)) {
+					highestCount = count;
+					highestRes = baseColorId;
+				}
+				counts[baseColorId] = 0;
+			}
+			// The average shade, rounded down
+			int shadeId = Map.shadeValueToId(shadeSum >> (2 * shift));
+			out[outOffset + i] = (byte) Map.makeColorId(highestRes, shadeId);
+		}
+	}
+
+}
@@ -0,0 +1,99 @@
+package ts.mcmapexporter;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// The JFR events of ExportMetrics. Java 8 runtimes before 8u262 have no
+// jdk.jfr, so this class is only loaded through ExportMetrics after it has
+// checked that jdk.jfr.Event exists. Events are passed around as Object
+// everywhere else, so no other class refers to jdk.jfr.
+class ExportEvents {
+
+	@Name("ts.mcmapexporter.Scan")
+	@Label("Map Directory Scan")
+	@Category("mcmapexporter")
+	static class ScanEvent extends Event {
+		@Label("Directory")
+		String directory;
+		@Label("Files")
+		int files;
+		@Label("Maps")
+		int maps;
+	}
+
+	@Name("ts.mcmapexporter.Combine")
+	@Label("Combine Maps")
+	@Category("mcmapexporter")
+	static class CombineEvent extends Event {
+		@Label("Dimension")
+		int dimension;
+		@Label("Scale")
+		int scale;
+		@Label("Maps")
+		int maps;
+	}
+
+	@Name("ts.mcmapexporter.Encode")
+	@Label("Encode Image")
+	@Category("mcmapexporter")
+	static class EncodeEvent extends Event {
+		@Label("File")
+		String file;
+		@Label("Size")
+		@DataAmount
+		long bytes;
+	}
+
+	public static Object beginScan() {
+		ScanEvent event = new ScanEvent();
+		event.begin();
+		return event;
+	}
+
+	public static void endScan(Object scan, String directory, int files,
+			int maps) {
+		ScanEvent event = (ScanEvent) scan;
+		if (event.shouldCommit()) {
+			event.directory = directory;
+			event.files = files;
+			event.maps = maps;
+			event.commit();
+		}
+	}
+
+	public static Object beginCombine() {
+		CombineEvent event = new CombineEvent();
+		event.begin();
+		return event;
+	}
+
+	public static void endCombine(Object combine, int dimension, int scale,
+			int maps) {
+		CombineEvent event = (CombineEvent) combine;
+		if (event.shouldCommit()) {
+			event.dimension = dimension;
+			event.scale = scale;
+			event.maps = maps;
+			event.commit();
+		}
+	}
+
+	public static Object beginEncode() {
+		EncodeEvent event = new EncodeEvent();
+		event.begin();
+		return event;
+	}
+
+	public static void endEncode(Object encode, String file, long bytes) {
+		EncodeEvent event = (EncodeEvent) encode;
+		if (event.shouldCommit()) {
+			event.file = file;
+			event.bytes = bytes;
+			event.commit();
+		}
+	}
+
+}
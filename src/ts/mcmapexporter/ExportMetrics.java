@@ -0,0 +1,256 @@
+package ts.mcmapexporter;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counts and times the work done by the export pipeline. The counters are
+// shared by all threads of the process and cover everything since the last
+// reset. Combiner.combineToImages resets them when an export starts, and a
+// batch resets them once for all its jobs. Work done at the same time by
+// something else, like the viewer or the tile server, is counted too.
+// Scans, combines and encoded images are also recorded as JFR events, which
+// costs next to nothing unless a flight recording is running. The events are
+// in ExportEvents, which is only used if the runtime has JFR.
+class ExportMetrics {
+
+	// Reasons a file in the map directory is not used
+	public static final int SKIP_NOT_A_FILE = 0;
+	public static final int SKIP_NAME = 1;
+	public static final int SKIP_INVALID = 2;
+	public static final int SKIP_OTHER_DIMENSION = 3;
+	private static final String[] SKIP_NAMES = { "notAFile", "notAMapName",
+			"invalid", "otherDimension" };
+
+	// Draws are counted per difference between the scale of the map drawn to
+	// and the scale of the map drawn, larger differences are counted as
+	// this one.
+	private static final int MAX_SCALE_DIFFERENCE = 4;
+
+	public static final LongAdder scanNanos = new LongAdder();
+	public static final LongAdder filesScanned = new LongAdder();
+	public static final LongAdder headersFromIndex = new LongAdder();
+	public static final LongAdder headersParsed = new LongAdder();
+	// Maps added to a collection by a scan
+	public static final LongAdder mapsLoaded = new LongAdder();
+	// Maps whose pixels were read while combining
+	public static final LongAdder mapPixelsLoaded = new LongAdder();
+	// Bytes read from map files, and the bytes they decompressed to
+	public static final LongAdder bytesRead = new LongAdder();
+	public static final LongAdder bytesDecompressed = new LongAdder();
+	public static final LongAdder combineNanos = new LongAdder();
+	public static final LongAdder encodeNanos = new LongAdder();
+	public static final LongAdder imagesEncoded = new LongAdder();
+	public static final LongAdder bytesEncoded = new LongAdder();
+	private static final LongAdder[] skipped = newAdders(SKIP_NAMES.length);
+	// Indexed by scale difference + MAX_SCALE_DIFFERENCE
+	private static final int N_DIFFERENCES = 2 * MAX_SCALE_DIFFERENCE + 1;
+	private static final LongAdder[] drawNanos = newAdders(N_DIFFERENCES);
+	private static final LongAdder[] draws = newAdders(N_DIFFERENCES);
+	private static final LongAdder[] pixelsDrawn = newAdders(N_DIFFERENCES);
+
+	private static LongAdder[] newAdders(int n) {
+		LongAdder[] adders = new LongAdder[n];
+		for (int i = 0; i < n; ++i) {
+			adders[i] = new LongAdder();
+		}
+		return adders;
+	}
+
+	// Whether the runtime has JFR, checked before ExportEvents is loaded
+	private static final boolean EVENTS = hasEvents();
+
+	private static boolean hasEvents() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		} catch (LinkageError e) {
+			return false;
+		}
+	}
+
+	// The begin methods return an event that was begun, or null without JFR.
+	// The end methods commit it if a recording wants it.
+
+	public static Object beginScan() {
+		return EVENTS ? ExportEvents.beginScan() : null;
+	}
+
+	public static void endScan(Object event, String directory, int files,
+			int maps) {
+		if (event != null) {
+			ExportEvents.endScan(event, directory, files, maps);
+		}
+	}
+
+	public static Object beginCombine() {
+		return EVENTS ? ExportEvents.beginCombine() : null;
+	}
+
+	public static void endCombine(Object event, int dimension, int scale,
+			int maps) {
+		if (event != null) {
+			ExportEvents.endCombine(event, dimension, scale, maps);
+		}
+	}
+
+	public static Object beginEncode() {
+		return EVENTS ? ExportEvents.beginEncode() : null;
+	}
+
+	public static void reset() {
+		LongAdder[] counters = { scanNanos, filesScanned, headersFromIndex,
+				headersParsed, mapsLoaded, mapPixelsLoaded, bytesRead,
+				bytesDecompressed, combineNanos, encodeNanos, imagesEncoded,
+				bytesEncoded };
+		for (LongAdder counter : counters) {
+			counter.reset();
+		}
+		for (int i = 0; i < skipped.length; ++i) {
+			skipped[i].reset();
+		}
+		for (int i = 0; i < draws.length; ++i) {
+			drawNanos[i].reset();
+			draws[i].reset();
+			pixelsDrawn[i].reset();
+		}
+	}
+
+	public static void skipped(int reason) {
+		skipped[reason].increment();
+	}
+
+	// A map drawn in parts, like the stripes of a parallel combine, adds the
+	// time and pixels of every part but is counted as one draw.
+	// @param scaleDifference
+	// The scale of the map drawn to minus the scale of the map drawn.
+	// @param firstPart
+	// true for the part that counts the draw.
+	public static void drawn(int scaleDifference, long nanos, long pixels,
+			boolean firstPart) {
+		int i = Math.max(-MAX_SCALE_DIFFERENCE,
+				Math.min(scaleDifference, MAX_SCALE_DIFFERENCE))
+				+ MAX_SCALE_DIFFERENCE;
+		drawNanos[i].add(nanos);
+		if (firstPart) {
+			draws[i].increment();
+		}
+		pixelsDrawn[i].add(pixels);
+	}
+
+	// Called when an image file has been written. The event is committed, it
+	// should have been returned by beginEncode when the encoding started at
+	// startNanos.
+	public static void encoded(Object event, long startNanos, File file) {
+		long bytes = file.length();
+		encodeNanos.add(System.nanoTime() - startNanos);
+		imagesEncoded.increment();
+		bytesEncoded.add(bytes);
+		if (event != null) {
+			ExportEvents.endEncode(event, file.getPath(), bytes);
+		}
+	}
+
+	// Counts the bytes read from in, into counter when in is closed.
+	public static InputStream countBytes(InputStream in, LongAdder counter) {
+		return new CountingInputStream(in, counter);
+	}
+
+	// Counts in a plain field so the shared counter is only touched once per
+	// stream.
+	private static class CountingInputStream extends FilterInputStream {
+		private LongAdder counter;
+		private long count = 0;
+
+		public CountingInputStream(InputStream in, LongAdder counter) {
+			super(in);
+			this.counter = counter;
+		}
+
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) {
+				++count;
+			}
+			return b;
+		}
+
+		public int read(byte[] b, int offset, int len) throws IOException {
+			int n = in.read(b, offset, len);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(n);
+			count += skipped;
+			return skipped;
+		}
+
+		public void close() throws IOException {
+			counter.add(count);
+			count = 0;
+			in.close();
+		}
+	}
+
+	private static double seconds(long nanos) {
+		return nanos / 1e9;
+	}
+
+	private static double perSecond(long count, long nanos) {
+		return nanos > 0 ? count / seconds(nanos) : 0;
+	}
+
+	// The counters as a JSON object on one line. Times are the sum over all
+	// threads that did the work.
+	public static String toJson() {
+		StringBuilder json = new StringBuilder();
+		json.append("{\"scanSeconds\":").append(seconds(scanNanos.sum()));
+		json.append(",\"filesScanned\":").append(filesScanned.sum());
+		json.append(",\"headersFromIndex\":").append(headersFromIndex.sum());
+		json.append(",\"headersParsed\":").append(headersParsed.sum());
+		json.append(",\"headersParsedPerSecond\":").append(
+				perSecond(headersParsed.sum(), scanNanos.sum()));
+		json.append(",\"skipped\":{");
+		for (int i = 0; i < skipped.length; ++i) {
+			json.append(i > 0 ? "," : "").append('"').append(SKIP_NAMES[i])
+					.append("\":").append(skipped[i].sum());
+		}
+		json.append("}");
+		json.append(",\"mapsLoaded\":").append(mapsLoaded.sum());
+		json.append(",\"mapsLoadedPerSecond\":").append(
+				perSecond(mapsLoaded.sum(), scanNanos.sum()));
+		json.append(",\"mapPixelsLoaded\":").append(mapPixelsLoaded.sum());
+		json.append(",\"bytesRead\":").append(bytesRead.sum());
+		json.append(",\"bytesDecompressed\":").append(bytesDecompressed.sum());
+		json.append(",\"combineSeconds\":").append(seconds(combineNanos.sum()));
+		json.append(",\"draws\":[");
+		boolean first = true;
+		for (int i = 0; i < draws.length; ++i) {
+			if (draws[i].sum() == 0)
+				continue;
+			json.append(first ? "" : ",");
+			json.append("{\"scaleDifference\":").append(
+					i - MAX_SCALE_DIFFERENCE);
+			json.append(",\"count\":").append(draws[i].sum());
+			json.append(",\"seconds\":").append(seconds(drawNanos[i].sum()));
+			json.append(",\"pixels\":").append(pixelsDrawn[i].sum());
+			json.append("}");
+			first = false;
+		}
+		json.append("]");
+		json.append(",\"encodeSeconds\":").append(seconds(encodeNanos.sum()));
+		json.append(",\"imagesEncoded\":").append(imagesEncoded.sum());
+		json.append(",\"bytesEncoded\":").append(bytesEncoded.sum());
+		json.append("}");
+		return json.toString();
+	}
+
+}
@@ -0,0 +1,49 @@
+package ts.mcmapexporter;
+
+import java.util.concurrent.CancellationException;
+
+// Receives the progress of an export, override the methods of interest. The
+// methods are called from the threads that do the work, often several at the
+// same time, so they must be thread safe and return quickly.
+//
+// An export is cancelled by calling cancel from any thread. The export checks
+// for it between maps and rows and stops by throwing a CancellationException,
+// which Combiner turns into a cancelled ExportResult.
+class ExportProgress {
+
+	// Used when nobody is interested in the progress. Shared by every export
+	// that has no progress of its own, so it can not be cancelled.
+	public static final ExportProgress NONE = new ExportProgress() {
+		public void cancel() {
+		}
+	};
+
+	private volatile boolean cancelled = false;
+
+	// The header of one more map file has been read.
+	public void mapsLoaded(int loaded, int total) {
+	}
+
+	// One more map has been drawn onto the combined map.
+	public void mapsCombined(int combined, int total) {
+	}
+
+	// One more row of an image has been encoded.
+	public void rowsEncoded(int encoded, int total) {
+	}
+
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	// Stops the export if it has been cancelled.
+	public void checkCancelled() {
+		if (cancelled)
+			throw new CancellationException("Export cancelled");
+	}
+
+}
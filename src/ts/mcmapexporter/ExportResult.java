@@ -0,0 +1,32 @@
+package ts.mcmapexporter;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// What an export did, returned by the Combiner functions.
+class ExportResult {
+
+	public boolean success = false;
+	public boolean cancelled = false;
+	// Why the export failed, null if it worked.
+	public String message = null;
+	// The images, or tile directories, that were written.
+	public List<Path> files = new ArrayList<Path>();
+	// Number of maps that were combined, in all dimensions.
+	public int nMaps = 0;
+	public long nanos = 0;
+
+	public static ExportResult failed(String message) {
+		ExportResult result = new ExportResult();
+		result.message = message;
+		return result;
+	}
+
+	public static ExportResult cancelled() {
+		ExportResult result = failed("The export was cancelled.");
+		result.cancelled = true;
+		return result;
+	}
+
+}
@@ -1,6 +1,7 @@
 package ts.mcmapexporter;
 
 import javax.swing.*;
+import java.awt.BorderLayout;
 import java.awt.Dimension;
 import java.awt.event.ActionListener;
 import java.awt.event.ActionEvent;
@@ -24,7 +25,7 @@ import java.nio.file.FileSystem;
 
 public class Gui extends JFrame implements ActionListener {
 
-	private Dimension WINDOW_START_SIZE = new Dimension(500, 300);
+	private Dimension WINDOW_START_SIZE = new Dimension(500, 350);
 	private Dimension TEXT_FIELD_START_SIZE = new Dimension(100, 20);
 
 	// Components in inputPanel
@@ -36,6 +37,11 @@ public class Gui extends JFrame implements ActionListener {
 	ButtonGroup dimensionButtonGroup;
 	JRadioButton dimensionRadios[];
 
+	// Components in configurationPanel. The first item is all maps, item i
+	// is configurations[i - 1].
+	JComboBox<String> configurationSelector;
+	java.util.List<MapConfiguration> configurations;
+
 	// Components in scalePanel
 	JComboBox<Integer> scaleSelector;
 
@@ -45,9 +51,25 @@ public class Gui extends JFrame implements ActionListener {
 
 	// Components in startPanel
 	JButton startButton;
+	JButton cancelButton;
+
+	// Components in progressPanel
+	JProgressBar progressBar;
+	JLabel statusLabel;
+
+	// The export that is running, null if there is none
+	private ExportWorker worker = null;
+
+	// Components in the view tab
+	MapViewer viewer;
+	JButton showButton;
+	JLabel viewLabel;
 
 	int MAX_SCALE = 4;
 
+	// Map configurations are read from here when the window is created
+	private static final String CONFIGURATION_FOLDER = "configurations";
+
 	private String getDefaultInputFolder() {
 		// TODO: Test/Fix for windows
 		// TODO: Test/Fix also for Mac and Linux
@@ -63,28 +85,167 @@ public class Gui extends JFrame implements ActionListener {
 		}
 	}
 
+	// Runs an export on a background thread so the window keeps responding.
+	// The progress is shown below the buttons and the result when it is done.
+	private class ExportWorker extends SwingWorker<ExportResult, String> {
+		private Path inputFolder;
+		private String dimension;
+		private int scale;
+		private Path outputFile;
+		private Combiner.Options options = new Combiner.Options();
+
+		public ExportWorker(Path inputFolder, String dimension, int scale,
+				Path outputFile, MapConfiguration configuration) {
+			this.inputFolder = inputFolder;
+			this.dimension = dimension;
+			this.scale = scale;
+			this.outputFile = outputFile;
+			options.configuration = configuration;
+			options.progress = new ExportProgress() {
+				public void mapsLoaded(int loaded, int total) {
+					report("Loading maps", loaded, total);
+				}
+
+				public void mapsCombined(int combined, int total) {
+					report("Combining maps", combined, total);
+				}
+
+				public void rowsEncoded(int encoded, int total) {
+					report("Writing image", encoded, total);
+				}
+			};
+		}
+
+		// Stops the export at the next map or row, the result then tells
+		// that it was cancelled.
+		public void cancelExport() {
+			options.progress.cancel();
+		}
+
+		// Called from the export threads, only every hundredth step is shown.
+		private void report(String phase, int done, int total) {
+			int step = Math.max(1, total / 100);
+			if (done % step != 0 && done != total)
+				return;
+			setProgress(total > 0 ? (int) (100L * done / total) : 0);
+			publish(phase + ": " + done + " of " + total);
+		}
+
+		protected ExportResult doInBackground() {
+			return Combiner.combineToImage(inputFolder, dimension, scale,
+					outputFile, options);
+		}
+
+		protected void process(java.util.List<String> chunks) {
+			statusLabel.setText(chunks.get(chunks.size() - 1));
+			progressBar.setValue(getProgress());
+		}
+
+		protected void done() {
+			worker = null;
+			startButton.setEnabled(true);
+			cancelButton.setEnabled(false);
+			progressBar.setValue(0);
+			ExportResult result;
+			try {
+				result = get();
+			} catch (Exception e) {
+				result = ExportResult.failed("The export failed: " + e);
+			}
+			if (result.success) {
+				statusLabel.setText(String.format("Done in %.1f s",
+						result.nanos / 1e9));
+				JOptionPane.showMessageDialog(Gui.this, "Map stored to "
+						+ outputFile);
+			} else if (result.cancelled) {
+				statusLabel.setText("Cancelled");
+			} else {
+				statusLabel.setText("Failed");
+				JOptionPane.showMessageDialog(Gui.this, result.message,
+						"Export failed", JOptionPane.ERROR_MESSAGE);
+			}
+		}
+	}
+
+	// Reads the map headers on a background thread and shows the maps in the
+	// viewer when done.
+	private class ShowWorker extends SwingWorker<MapCollection, Void> {
+		private Path inputFolder;
+		private String dimension;
+		private MapConfiguration configuration;
+
+		// configuration may be null, the maps of the dimension are then
+		// shown.
+		public ShowWorker(Path inputFolder, String dimension,
+				MapConfiguration configuration) {
+			this.inputFolder = inputFolder;
+			this.dimension = configuration != null ? configuration.name
+					: dimension;
+			this.configuration = configuration;
+		}
+
+		protected MapCollection doInBackground() throws java.io.IOException {
+			int threads = Runtime.getRuntime().availableProcessors();
+			MapCollection maps;
+			if (configuration != null) {
+				maps = new MapCollection(inputFolder, configuration, threads,
+						null, ExportProgress.NONE);
+			} else {
+				maps = new MapCollection(inputFolder,
+						Combiner.parseDimension(dimension), threads);
+			}
+			// Built here so the viewer does not have to
+			maps.getGrid();
+			return maps;
+		}
+
+		protected void done() {
+			showButton.setEnabled(true);
+			try {
+				MapCollection maps = get();
+				viewer.setMaps(maps);
+				viewLabel.setText(maps.getNMaps() + " maps in " + dimension);
+			} catch (Exception e) {
+				viewLabel.setText("Failed reading the maps");
+				JOptionPane.showMessageDialog(Gui.this,
+						"Failed reading files from the directory.",
+						"View failed", JOptionPane.ERROR_MESSAGE);
+			}
+		}
+	}
+
 	Gui() {
 
 		JPanel windowPanel;
+		JPanel viewPanel;
+		JTabbedPane tabs;
 
 		this.setPreferredSize(WINDOW_START_SIZE);
+		tabs = new JTabbedPane();
 		windowPanel = new JPanel();
 		windowPanel.setLayout(new BoxLayout(windowPanel, BoxLayout.Y_AXIS));
-		this.setContentPane(windowPanel);
+		viewPanel = new JPanel(new BorderLayout());
+		tabs.addTab("Export", windowPanel);
+		tabs.addTab("View", viewPanel);
+		this.setContentPane(tabs);
 		this.setTitle("Gui");
 
 		JPanel inputPanel;
+		JPanel configurationPanel;
 		JPanel dimensionPanel;
 		JPanel scalePanel;
 		JPanel outputPanel;
 		JPanel startPanel;
+		JPanel progressPanel;
 
 		// create the other panels
 		inputPanel = new JPanel();
+		configurationPanel = new JPanel();
 		dimensionPanel = new JPanel();
 		scalePanel = new JPanel();
 		outputPanel = new JPanel();
 		startPanel = new JPanel();
+		progressPanel = new JPanel();
 
 		// Components in inputPanel
 		inputFolderBox = new JTextField();
@@ -92,6 +253,16 @@ public class Gui extends JFrame implements ActionListener {
 		inputBrowseButton = new JButton("Browse");
 		inputBrowseButton.addActionListener(this);
 
+		// Components in configurationPanel
+		configurationSelector = new JComboBox<String>();
+		configurationSelector.addItem("All maps");
+		configurations = MapConfiguration.findAll(FileSystems.getDefault()
+				.getPath(CONFIGURATION_FOLDER));
+		for (MapConfiguration configuration : configurations) {
+			configurationSelector.addItem(configuration.name);
+		}
+		configurationSelector.addActionListener(this);
+
 		// Components in dimensionPanel
 		dimensionRadioPanel = new JPanel();
 		dimensionRadioPanel.setLayout(new BoxLayout(dimensionRadioPanel,
@@ -118,19 +289,31 @@ public class Gui extends JFrame implements ActionListener {
 		// components in startPanel
 		startButton = new JButton("Create Map");
 		startButton.addActionListener(this);
+		cancelButton = new JButton("Cancel");
+		cancelButton.addActionListener(this);
+		cancelButton.setEnabled(false);
+
+		// components in progressPanel
+		progressBar = new JProgressBar(0, 100);
+		statusLabel = new JLabel(" ");
 
 		// Do all the adding
 
 		windowPanel.add(inputPanel);
+		windowPanel.add(configurationPanel);
 		windowPanel.add(dimensionPanel);
 		windowPanel.add(scalePanel);
 		windowPanel.add(outputPanel);
 		windowPanel.add(startPanel);
+		windowPanel.add(progressPanel);
 
 		inputPanel.add(new JLabel("Input Map Folder: "));
 		inputPanel.add(inputFolderBox);
 		inputPanel.add(inputBrowseButton);
 
+		configurationPanel.add(new JLabel("Maps: "));
+		configurationPanel.add(configurationSelector);
+
 		dimensionPanel.add(new JLabel("dimension: "));
 		dimensionPanel.add(dimensionRadioPanel);
 		for (int i = 0; i < dimensionRadios.length; ++i) {
@@ -146,6 +329,21 @@ public class Gui extends JFrame implements ActionListener {
 		outputPanel.add(outputBrowseButton);
 
 		startPanel.add(startButton);
+		startPanel.add(cancelButton);
+
+		progressPanel.add(progressBar);
+		progressPanel.add(statusLabel);
+
+		// The view tab shows the folder and dimension of the export tab
+		JPanel showPanel = new JPanel();
+		showButton = new JButton("Show Maps");
+		showButton.addActionListener(this);
+		viewLabel = new JLabel("Drag to move, use the mouse wheel to zoom");
+		showPanel.add(showButton);
+		showPanel.add(viewLabel);
+		viewer = new MapViewer();
+		viewPanel.add(showPanel, BorderLayout.NORTH);
+		viewPanel.add(viewer, BorderLayout.CENTER);
 
 		inputFolderBox.setText(getDefaultInputFolder());
 		dimensionRadios[1].setSelected(true);
@@ -174,15 +372,26 @@ public class Gui extends JFrame implements ActionListener {
 			if (p != null) {
 				outputFolderBox.setText(p.toString());
 			}
-		} else if (o == startButton) {
-
-			String dimension = "";
+		} else if (o == showButton) {
+			String inputFolder = inputFolderBox.getText();
+			if (inputFolder.isEmpty()) {
+				JOptionPane.showMessageDialog(null,
+						"Please set the input folder path.");
+				return;
+			}
+			showButton.setEnabled(false);
+			viewLabel.setText("Reading maps");
+			new ShowWorker(fs.getPath(inputFolder), getSelectedDimension(),
+					getSelectedConfiguration()).execute();
+		} else if (o == configurationSelector) {
+			// A configuration has a dimension of its own
+			boolean all = getSelectedConfiguration() == null;
 			for (int i = 0; i < dimensionRadios.length; ++i) {
-				if (dimensionRadios[i].isSelected()) {
-					dimension = dimensionRadios[i].getText();
-					break;
-				}
+				dimensionRadios[i].setEnabled(all);
 			}
+		} else if (o == startButton) {
+
+			String dimension = getSelectedDimension();
 			if (dimension == "") {
 				JOptionPane.showMessageDialog(null,
 						"No dimension has been selected.");
@@ -201,14 +410,41 @@ public class Gui extends JFrame implements ActionListener {
 				JOptionPane.showMessageDialog(null, "Please set an output file path.");
 				return;
 			}
-			Path outputFile = fs.getPath(outputFolder).resolve("CombinedMap.png");
+			// A configuration is exported to a file with its name
+			MapConfiguration configuration = getSelectedConfiguration();
+			Path outputFile = fs.getPath(outputFolder).resolve(
+					configuration != null ? configuration.name + ".png"
+							: "CombinedMap.png");
 			int scale = (Integer) (scaleSelector.getSelectedItem());
 
-			// TODO: combineToImage should return true/false to indicate error
-			// or not. Print error message to a field in the Combiner object.
-			Combiner.combineToImage(fs.getPath(inputFolder), dimension, scale, outputFile);
-			JOptionPane.showMessageDialog(null, "Map stored to " + outputFile);
+			worker = new ExportWorker(fs.getPath(inputFolder), dimension,
+					scale, outputFile, configuration);
+			startButton.setEnabled(false);
+			cancelButton.setEnabled(true);
+			statusLabel.setText("Starting");
+			worker.execute();
+		} else if (o == cancelButton) {
+			if (worker != null) {
+				worker.cancelExport();
+				cancelButton.setEnabled(false);
+				statusLabel.setText("Cancelling");
+			}
+		}
+	}
+
+	private String getSelectedDimension() {
+		for (int i = 0; i < dimensionRadios.length; ++i) {
+			if (dimensionRadios[i].isSelected()) {
+				return dimensionRadios[i].getText();
+			}
 		}
+		return "";
+	}
+
+	// @return null if all maps are selected.
+	private MapConfiguration getSelectedConfiguration() {
+		int i = configurationSelector.getSelectedIndex();
+		return i > 0 ? configurations.get(i - 1) : null;
 	}
 
 	public Path performSelectFolder(String chooseText) {
@@ -0,0 +1,101 @@
+package ts.mcmapexporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+
+// Keeps an exported image up to date while the game changes the maps, see
+// MapWatcher. The maps are loaded and combined once, after that only the
+// headers of changed files are read again, and only the parts of the combined
+// map they cover are redrawn before the image is written again.
+class ImageUpdater implements MapWatcher.Listener {
+
+	private Path directory;
+	private int dimension;
+	private int scale;
+	private Path outFile;
+	private Combiner.Options options;
+	private Path indexFile;
+	private MapIndex index;
+	private MapCollection maps;
+	// The combined map and the bounds it was created with, null if there
+	// are no maps.
+	private Map combinedMap;
+	private int[] bounds;
+
+	public ImageUpdater(Path directory, int dimension, int scale,
+			Path outFile, Combiner.Options options) throws IOException {
+		this.directory = directory;
+		this.dimension = dimension;
+		this.scale = scale;
+		this.outFile = outFile;
+		this.options = options;
+		indexFile = MapIndex.indexFileFor(outFile);
+		Map.setBaseColors();
+		// A combined map saved by an incremental export would no longer
+		// match the index once it is updated here.
+		Files.deleteIfExists(outFile.resolveSibling(outFile.getFileName()
+				+ ".canvas"));
+	}
+
+	public void loadAll() throws IOException {
+		long start = System.nanoTime();
+		index = options.useIndex ? MapIndex.load(indexFile, directory) : null;
+		maps = new MapCollection(directory, dimension, options.threads, index);
+		bounds = maps.getBounds();
+		combinedMap = maps.combine(scale);
+		System.out.println("Number of maps loaded: " + maps.getNMaps());
+		publish(start);
+	}
+
+	public void update(List<File> files) throws IOException {
+		long start = System.nanoTime();
+		List<MapIndex.Entry> changes = maps.reload(files);
+		if (changes.isEmpty()) {
+			Combiner.saveIndex(index, indexFile);
+			return;
+		}
+		System.out.println(files.size() + " files changed, "
+				+ changes.size() + " maps added or removed.");
+		int[] newBounds = maps.getBounds();
+		if ((combinedMap == null) || !Arrays.equals(bounds, newBounds)) {
+			// The maps grew beyond the combined map, or it is the first map
+			bounds = newBounds;
+			combinedMap = maps.combine(scale);
+		} else {
+			maps.updateCombined(combinedMap, changes);
+		}
+		publish(start);
+	}
+
+	// Writes the image next to the output file and then moves it in place,
+	// so whoever reads the output file never sees it half written.
+	private void publish(long start) {
+		if (combinedMap == null) {
+			System.out.println("There are no maps to export.");
+			Combiner.saveIndex(index, indexFile);
+			return;
+		}
+		Path tmpFile = outFile.resolveSibling("." + outFile.getFileName());
+		if (!combinedMap.exportImage(tmpFile.toFile(), dimension)) {
+			System.out.println("No image was created.");
+			return;
+		}
+		try {
+			Files.move(tmpFile, outFile, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.out.println("Failed replacing the image: " + outFile);
+			System.out.println("Exception message: " + e.getMessage());
+			return;
+		}
+		Combiner.saveIndex(index, indexFile);
+		System.out.println("Image updated: " + outFile + " in "
+				+ ((System.nanoTime() - start) / 1000000) + " ms");
+	}
+
+}
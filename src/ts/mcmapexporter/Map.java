@@ -1,14 +1,15 @@
 package ts.mcmapexporter;
 
 import java.io.File;
-import java.nio.file.Files;
-import java.nio.ByteBuffer;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.EOFException;
+import java.nio.charset.StandardCharsets;
 import java.util.zip.GZIPInputStream;
+import java.io.BufferedInputStream;
 import java.io.FileInputStream;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 
 class Map {
 
@@ -18,7 +19,10 @@ class Map {
 	private int height;
 	private int scale;
 	private long lastModified;
-	private byte[] pixels;
+	private Canvas pixels;
+	// The file the map was read from, used to load the pixels on demand when
+	// only the header was read.
+	private File file;
 
 	public static final int OVERWORLD = 0;
 	public static final int NETHER = -1;
@@ -26,14 +30,21 @@ class Map {
 
 	private static int N_BASE_COLORS = 36;
 
+	// Used for dimensions that this program does not know about.
+	public static final int UNKNOWN_DIMENSION = Integer.MIN_VALUE;
+
 	private static boolean GZIPPED = true; // true if the files being read is
 											// gzipped.
 
-	private static int[] baseColorTable = new int[N_BASE_COLORS];
+	private static int STREAM_BUFFER_SIZE = 8192;
 
-	private static String charset = "US-ASCII";
+	private static int[] baseColorTable = new int[N_BASE_COLORS];
 
-	// private static String charset = "UNICODE";
+	// The RGB value of every possible colorId, built from baseColorTable by
+	// setBaseColors. Ids with an unknown base color are black.
+	private static int[] palette = new int[256];
+	private static java.awt.image.IndexColorModel paletteColorModel =
+			makeColorModel();
 
 	private static int makeRGB(int r, int g, int b) {
 		int rgb = r;
@@ -105,9 +116,50 @@ class Map {
 		setBaseColor(33, 0, 217, 58);
 		setBaseColor(34, 21, 20, 31);
 		setBaseColor(35, 112, 2, 0);
+		buildPalette();
+	}
+
+	private static void buildPalette() {
+		for (int colorId = 0; colorId < palette.length; ++colorId) {
+			if (getBaseColorId(colorId) < N_BASE_COLORS) {
+				palette[colorId] = colorIdToRGB(colorId);
+			} else {
+				palette[colorId] = 0;
+			}
+		}
+		paletteColorModel = makeColorModel();
+	}
+
+	private static java.awt.image.IndexColorModel makeColorModel() {
+		byte[] r = new byte[palette.length];
+		byte[] g = new byte[palette.length];
+		byte[] b = new byte[palette.length];
+		for (int i = 0; i < palette.length; ++i) {
+			r[i] = (byte) getRed(palette[i]);
+			g[i] = (byte) getGreen(palette[i]);
+			b[i] = (byte) getBlue(palette[i]);
+		}
+		return new java.awt.image.IndexColorModel(8, palette.length, r, g, b);
 	}
 
 	public Map(int beginX, int beginZ, int endX, int endZ, int scale) {
+		setArea(beginX, beginZ, endX, endZ, scale);
+		// Tiles are only allocated where maps are drawn, the rest of the
+		// area stays unexplored without using memory.
+		this.pixels = new TiledCanvas(width, height);
+	}
+
+	// Like Map(beginX, beginZ, endX, endZ, scale) but the pixels are kept in
+	// a scratch file in scratchDirectory instead of on the heap, see
+	// MappedCanvas.
+	public Map(int beginX, int beginZ, int endX, int endZ, int scale,
+			java.nio.file.Path scratchDirectory) throws IOException {
+		setArea(beginX, beginZ, endX, endZ, scale);
+		this.pixels = new MappedCanvas(width, height, scratchDirectory);
+	}
+
+	private void setArea(int beginX, int beginZ, int endX, int endZ,
+			int scale) {
 		boolean print = false;
 		this.scale = scale;
 		this.lastModified = 0;
@@ -126,255 +178,240 @@ class Map {
 			System.out.println("endX = " + endX);
 			System.out.println("endZ = " + endZ);
 		}
+	}
 
-		this.pixels = new byte[sizeX * sizeZ];
+	public static class ReadResult {
+		public int value;
+	};
 
-		// Set all the pixel values to the unexplored color.
-		for (int x = 0; x < sizeX; ++x) {
-			for (int z = 0; z < sizeZ; ++z) {
-				writePixel(x, z, (byte) 0);
-			}
+	// Tag names in map items are plain ASCII, which is encoded the same way in
+	// the modified UTF-8 used by NBT.
+	private static final byte[] DATA_KEY = tagName("data");
+	private static final byte[] SCALE_KEY = tagName("scale");
+	private static final byte[] DIMENSION_KEY = tagName("dimension");
+	private static final byte[] HEIGHT_KEY = tagName("height");
+	private static final byte[] WIDTH_KEY = tagName("width");
+	private static final byte[] X_CENTER_KEY = tagName("xCenter");
+	private static final byte[] Z_CENTER_KEY = tagName("zCenter");
+	private static final byte[] COLORS_KEY = tagName("colors");
+
+	// Bit flags for the header fields, used to know when a header-only read
+	// can stop.
+	private static final int SCALE_FIELD = 1;
+	private static final int DIMENSION_FIELD = 2;
+	private static final int HEIGHT_FIELD = 4;
+	private static final int WIDTH_FIELD = 8;
+	private static final int X_CENTER_FIELD = 16;
+	private static final int Z_CENTER_FIELD = 32;
+	private static final int ALL_HEADER_FIELDS = 63;
+
+	private static byte[] tagName(String name) {
+		return name.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	// Newer versions of minecraft stores the dimension as a name instead of a
+	// number.
+	private static int dimensionFromName(String name) {
+		if (name.equals("minecraft:overworld")) {
+			return OVERWORLD;
+		} else if (name.equals("minecraft:the_nether")) {
+			return NETHER;
+		} else if (name.equals("minecraft:the_end")) {
+			return THE_END;
+		} else {
+			return UNKNOWN_DIMENSION;
 		}
 	}
 
-	private boolean matchInByteArr(byte[] array, int i, byte[] matchArray) {
-		boolean print = false;
-		if (array[i] != matchArray[0])
-			return false;
-		byte[] subArray = java.util.Arrays.copyOfRange(array, i, i
-				+ matchArray.length);
-		assert (subArray.length == matchArray.length);
-		if (print) {
+	static InputStream openMapStream(File file) throws IOException {
+		InputStream is = ExportMetrics.countBytes(new FileInputStream(file),
+				ExportMetrics.bytesRead);
+		if (GZIPPED) {
 			try {
-				System.out.println("subArray = \""
-						+ new String(subArray, charset) + "\" matchArray = \""
-						+ new String(matchArray, charset) + "\"");
-			} catch (UnsupportedEncodingException e) {
-				System.out.println("UnsupportedEncodingException: " + charset);
+				is = new GZIPInputStream(is, STREAM_BUFFER_SIZE);
+			} catch (IOException e) {
+				is.close();
+				throw e;
 			}
 		}
-		boolean res = java.util.Arrays.equals(subArray, matchArray);
-		if (res && print)
-			System.out.println("*matched*");
-		return res;
-	}
-
-	public static class ReadResult {
-		public int length;
-		public int value;
-	};
-
-	private byte[] readColors(byte[] fileArray, int startI, int nBytes) {
-		return java.util.Arrays.copyOfRange(fileArray, startI, startI + nBytes);
+		is = ExportMetrics.countBytes(is, ExportMetrics.bytesDecompressed);
+		return new BufferedInputStream(is, STREAM_BUFFER_SIZE);
 	}
 
 	/**
-	 * @param length
-	 *            Number of bytes read. out parameter.
-	 * @param value
-	 *            Resulting value, out parameter.
+	 * Loads a minecraft map item
+	 * 
+	 * @param dimension
+	 *            An out parameter describing which dimension the loaded map
+	 *            represents.
 	 */
-	private void readKeyAndInt(byte[] fileArray, int startI, byte[] key,
-			ReadResult res) {
-		int i = startI + key.length;
-		ByteBuffer bb = ByteBuffer.wrap(fileArray);
-		res.value = bb.getInt(i);
-		i += 4;
-		res.length = i - startI;
+	public Map(File file, ReadResult dimension) throws IOException {
+		this(file, dimension, true);
 	}
 
 	/**
-	 * @param length
-	 *            Number of bytes read. out parameter.
-	 * @param value
-	 *            Resulting value, out parameter.
+	 * Loads a minecraft map item
+	 * 
+	 * @param dimension
+	 *            An out parameter describing which dimension the loaded map
+	 *            represents.
+	 * @param loadPixels
+	 *            If false only the header fields are read and reading stops as
+	 *            soon as they are found, the pixels are then loaded when they
+	 *            are needed.
 	 */
-	private void readKeyAndShort(byte[] fileArray, int startI, byte[] key,
-			ReadResult res) {
-		int i = startI + key.length;
-		ByteBuffer bb = ByteBuffer.wrap(fileArray);
-		res.value = bb.getShort(i);
-		i += 2;
-		res.length = i - startI;
+	public Map(File file, ReadResult dimension, boolean loadPixels)
+			throws IOException {
+		this.file = file;
+		byte[] colors = null;
+		NbtReader nbt = new NbtReader(openMapStream(file));
+		try {
+			// The file is an unnamed root compound which holds the "data"
+			// compound, everything outside of "data" is skipped.
+			if (nbt.readTagType() == NbtReader.TAG_COMPOUND) {
+				nbt.readName();
+				while (true) {
+					int type = nbt.readTagType();
+					if (type == NbtReader.TAG_END || type == -1)
+						break;
+					nbt.readName();
+					if (type == NbtReader.TAG_COMPOUND
+							&& nbt.nameEquals(DATA_KEY)) {
+						colors = readData(nbt, dimension, loadPixels);
+						break;
+					}
+					nbt.skipPayload(type);
+				}
+			}
+		} finally {
+			nbt.close();
+		}
+
+		if ((colors != null) && (width > 0) && (height > 0)
+				&& (colors.length >= width * height)) {
+			this.pixels = new ArrayCanvas(width, height, colors);
+		}
+		this.lastModified = file.lastModified();
 	}
 
 	/**
-	 * @param length
-	 *            Number of bytes read. out parameter.
-	 * @param value
-	 *            Resulting value, out parameter.
+	 * Creates a map from header values that are already known, for example
+	 * from a MapIndex. The pixels are loaded from the file when needed.
 	 */
-	private void readKeyAndByte(byte[] fileArray, int startI, byte[] key,
-			ReadResult res) {
-		int i = startI + key.length;
-		res.value = fileArray[i];
-		i += 1;
-		res.length = i - startI;
-	}
-
-	private static byte[] loadFile(File file) throws IOException {
-		return Files.readAllBytes(file.toPath());
-	}
-
-	private static byte[] loadGZippedFile(File file) throws IOException {
-		boolean useGZip = true;
-
-		FileInputStream fis = new FileInputStream(file);
-		java.util.zip.GZIPInputStream gis = null;
-		InputStream is = fis;
-		if (useGZip) {
-			gis = new GZIPInputStream(fis);
-			is = gis;
-		}
-
-		ArrayList<byte[]> buffers = new ArrayList<byte[]>();
-		byte[] buffer;
-		int totalSize = 0;
+	public Map(File file, int scale, int width, int height, int centerX,
+			int centerZ, long lastModified) {
+		this.file = file;
+		this.scale = scale;
+		this.width = width;
+		this.height = height;
+		this.centerX = centerX;
+		this.centerZ = centerZ;
+		this.lastModified = lastModified;
+	}
+
+	// Reads the fields of the "data" compound, up to and including its TAG_END.
+	// If loadPixels is false it returns as soon as all header fields are read.
+	// @return The colors array, or null if it was not read.
+	private byte[] readData(NbtReader nbt, ReadResult dimension,
+			boolean loadPixels) throws IOException {
+		int headerFieldsRead = 0;
+		byte[] colors = null;
 		while (true) {
-			buffer = new byte[1024];
-			int n = is.read(buffer);
-
-			if (n == -1) {
-				break;
-			}
-			totalSize += n;
-			if ((totalSize == Integer.MAX_VALUE) || (totalSize < 0)) {
-				System.out.println("The input file is too large!");
-				if (gis != null) {
-					gis.close();
-				}
-				is.close();
+			if (!loadPixels && headerFieldsRead == ALL_HEADER_FIELDS)
 				return null;
-			}
-
-			if (n == 0) {
-				// just try again
-			} else if (n < buffer.length) {
-				byte[] tmpBuffer = buffer;
-				buffer = java.util.Arrays.copyOfRange(tmpBuffer, 0, n);
-				buffers.add(buffer);
-				// System.out.print(new String(buffer, charset));
-			} else {
-				assert (n == buffer.length);
-				buffers.add(buffer);
-				// System.out.print(new String(buffer, charset));
-			}
-
-		}
-		// System.out.println("----------------------------");
-		int testRead = is.read();
-		// System.out.println("testRead = " + testRead);
-		assert (testRead == -1);
-		if (gis != null) {
-			gis.close();
-		}
-		is.close();
-		if (totalSize > 0) {
-			byte[] resArray = new byte[totalSize];
-			int i = 0;
-			java.util.Iterator<byte[]> it = buffers.iterator();
-			while (it.hasNext()) {
-				buffer = it.next();
-				for (int j = 0; j < buffer.length; ++j) {
-					if (i >= resArray.length) {
-						System.out.println("buffer.length = " + buffer.length);
-						System.out.println("j = " + j);
-						System.out
-								.println("Internal Error in loadGZippedFile, cannot read file.");
-						assert (false);
-						return null;
-					}
-					resArray[i] = buffer[j];
-					++i;
+			int type = nbt.readTagType();
+			if (type == -1)
+				throw new EOFException();
+			if (type == NbtReader.TAG_END)
+				return colors;
+			nbt.readName();
+			if (NbtReader.isInteger(type)) {
+				int value = (int) nbt.readInteger(type);
+				if (nbt.nameEquals(SCALE_KEY)) {
+					this.scale = value;
+					headerFieldsRead |= SCALE_FIELD;
+				} else if (nbt.nameEquals(DIMENSION_KEY)) {
+					dimension.value = value;
+					headerFieldsRead |= DIMENSION_FIELD;
+				} else if (nbt.nameEquals(HEIGHT_KEY)) {
+					this.height = value;
+					headerFieldsRead |= HEIGHT_FIELD;
+				} else if (nbt.nameEquals(WIDTH_KEY)) {
+					this.width = value;
+					headerFieldsRead |= WIDTH_FIELD;
+				} else if (nbt.nameEquals(X_CENTER_KEY)) {
+					this.centerX = value;
+					headerFieldsRead |= X_CENTER_FIELD;
+				} else if (nbt.nameEquals(Z_CENTER_KEY)) {
+					this.centerZ = value;
+					headerFieldsRead |= Z_CENTER_FIELD;
 				}
+			} else if (loadPixels && type == NbtReader.TAG_BYTE_ARRAY
+					&& nbt.nameEquals(COLORS_KEY)) {
+				// number of bytes in colors (width*height)
+				colors = new byte[nbt.readArrayLength()];
+				nbt.readBytes(colors);
+			} else if (type == NbtReader.TAG_STRING
+					&& nbt.nameEquals(DIMENSION_KEY)) {
+				dimension.value = dimensionFromName(nbt.readString());
+				headerFieldsRead |= DIMENSION_FIELD;
+			} else {
+				nbt.skipPayload(type);
 			}
-			assert (i == resArray.length);
-			return resArray;
-		} else {
-			return null;
 		}
 	}
 
+	public boolean isValid() {
+		return (width > 0) && (height > 0) && (scale >= 0)
+				&& ((pixels != null) || (file != null));
+	}
+
+	public boolean hasPixels() {
+		return pixels != null;
+	}
+
 	/**
-	 * Loads a minecraft map item
+	 * Makes sure the pixels are in memory, reading them from the file if only
+	 * the header was loaded.
 	 * 
-	 * @param dimension
-	 *            An out parameter describing which dimension the loaded map
-	 *            represents.
+	 * @return false if the pixels could not be loaded, the map is then set to
+	 *         invalid.
 	 */
-	public Map(File file, ReadResult dimension) throws IOException {
-
-		// System.out.println("********************************");
-		// System.out.println("Loading file: " + file);
-
-		byte[] fileArray = GZIPPED ? loadGZippedFile(file) : loadFile(file);
-
-		// java.io.FileOutputStream fileOuputStream = new
-		// java.io.FileOutputStream("/media/tornic/Voyager/Nytt/programming/mapcombiner/read_res.map");
-		// fileOuputStream.write(fileArray);
-		// fileOuputStream.close();
-
-		byte[] dataStr = "data".getBytes(charset);
-		byte[] scaleStr = "scale".getBytes(charset);
-		byte[] dimensionStr = "dimension".getBytes(charset);
-		byte[] heightStr = "height".getBytes(charset);
-		byte[] widthStr = "width".getBytes(charset);
-		byte[] xCenterStr = "xCenter".getBytes(charset);
-		byte[] zCenterStr = "zCenter".getBytes(charset);
-		byte[] colorsStr = "colors".getBytes(charset);
-
-		ReadResult res = new ReadResult();
-
-		for (int i = 0; i < fileArray.length; ++i) {
-			if (matchInByteArr(fileArray, i, scaleStr)) {
-				readKeyAndByte(fileArray, i, scaleStr, res);
-				this.scale = res.value;
-				i += res.length;
-			} else if (matchInByteArr(fileArray, i, dimensionStr)) {
-				readKeyAndByte(fileArray, i, dimensionStr, res);
-				// System.out.println("res.value = " + res.value);
-				dimension.value = res.value;
-				i += res.length;
-			} else if (matchInByteArr(fileArray, i, heightStr)) {
-				readKeyAndShort(fileArray, i, heightStr, res);
-				this.height = res.value;
-				i += res.length;
-			} else if (matchInByteArr(fileArray, i, widthStr)) {
-				readKeyAndShort(fileArray, i, widthStr, res);
-				this.width = res.value;
-				i += res.length;
-			} else if (matchInByteArr(fileArray, i, xCenterStr)) {
-				readKeyAndInt(fileArray, i, xCenterStr, res);
-				this.centerX = res.value;
-				i += res.length;
-			} else if (matchInByteArr(fileArray, i, zCenterStr)) {
-				readKeyAndInt(fileArray, i, zCenterStr, res);
-				this.centerZ = res.value;
-				i += res.length;
-			} else if (matchInByteArr(fileArray, i, colorsStr)) {
-				readKeyAndInt(fileArray, i, colorsStr, res);
-				int size = res.value; // number of bytes in colors
-										// (width*height)
-				i += res.length;
-				this.pixels = readColors(fileArray, i, size);
+	public boolean loadPixels() {
+		if (pixels != null)
+			return true;
+		if (file == null)
+			return false;
+		try {
+			Map loaded = new Map(file, new ReadResult(), true);
+			if ((loaded.pixels != null) && (loaded.width == width)
+					&& (loaded.height == height)) {
+				pixels = loaded.pixels;
+				ExportMetrics.mapPixelsLoaded.increment();
+				return true;
 			}
+			System.out.println("Map file has no pixels: " + file);
+		} catch (IOException e) {
+			System.out.println("Failed reading pixels from: " + file);
+			System.out.println("Exception message: " + e.getMessage());
 		}
+		setInvalid();
+		return false;
+	}
 
-		this.lastModified = file.lastModified();
-
-		// System.out.println("loaded image width=" + width + ", height=" +
-		// height);
-
-		// System.out.println("centerX = " + centerX);
-		// System.out.println("centerZ = " + centerZ);
-		// System.out.println("width = " + width);
-		// System.out.println("height = " + height);
-		// System.out.println("scale = " + scale);
-		// System.out.println("dimension = " + dimension);
+	// Frees the memory used by the pixels if they can be loaded again.
+	public void releasePixels() {
+		if (file != null) {
+			pixels = null;
+		}
 	}
 
-	public boolean isValid() {
-		return (width > 0) && (height > 0) && (scale >= 0) && (pixels != null);
+	// Frees a canvas kept in a scratch file now instead of when it is garbage
+	// collected. The map can not be used afterwards.
+	public void releaseCanvas() {
+		if (pixels instanceof MappedCanvas) {
+			((MappedCanvas) pixels).release();
+		}
 	}
 
 	public void setInvalid() {
@@ -382,6 +419,7 @@ class Map {
 		height = 0;
 		scale = 0;
 		pixels = null;
+		file = null;
 	}
 
 	public int getScale() {
@@ -392,6 +430,35 @@ class Map {
 		return lastModified;
 	}
 
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getCenterX() {
+		return centerX;
+	}
+
+	public int getCenterZ() {
+		return centerZ;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	Canvas getCanvas() {
+		return pixels;
+	}
+
+	// The RGB values of all colorIds, built by setBaseColors.
+	static int[] getPalette() {
+		return palette;
+	}
+
 	public int getSizeX() {
 		return mapToWorld(width);
 	}
@@ -416,18 +483,17 @@ class Map {
 		return centerZ + getSizeZ() / 2;
 	}
 
+	// Rounds towards zero, the same as dividing by 2 scale times.
 	public int worldToMap(int units) {
-		for (int i = 0; i < scale; ++i) {
-			units = units / 2;
+		if (units >= 0) {
+			return units >> scale;
+		} else {
+			return -((-units) >> scale);
 		}
-		return units;
 	}
 
 	public int mapToWorld(int units) {
-		for (int i = 0; i < scale; ++i) {
-			units = units * 2;
-		}
-		return units;
+		return units << scale;
 	}
 
 	public int worldXToMapX(int x) {
@@ -505,6 +571,10 @@ class Map {
 	}
 
 	public static java.awt.Color colorIdToColor(int colorId) {
+		return new java.awt.Color(colorIdToRGB(colorId));
+	}
+
+	public static int colorIdToRGB(int colorId) {
 		int baseColorId = getBaseColorId(colorId);
 		int shadeId = getColorShadeId(colorId);
 
@@ -535,33 +605,59 @@ class Map {
 		assert (ig >= 0);
 		assert (ib >= 0);
 
-		return new java.awt.Color(ir, ig, ib); // the final color
+		return makeRGB(ir, ig, ib); // the final color
 	}
 
 	public boolean exportImage(File file, int dimension) {
+		return exportImage(file, dimension, ExportProgress.NONE);
+	}
+
+	// Like exportImage(File, int) but reports the encoded rows to progress,
+	// and stops if it is cancelled.
+	public boolean exportImage(File file, int dimension,
+			ExportProgress progress) {
 		if (width <= 0 || height <= 0) {
 			System.out
 					.println("Cannot save image to disk, image has zero size.");
 			return false;
 		}
-		java.awt.image.BufferedImage bi = new java.awt.image.BufferedImage(
-				width, height, java.awt.image.BufferedImage.TYPE_INT_RGB);
-		java.awt.Graphics2D sg = bi.createGraphics();
-		for (int z = 0; z < height; ++z) {
-			for (int x = 0; x < width; ++x) {
-				int pixel = readPixel(x, z);
-				java.awt.Color color = colorIdToColor(pixel);
-				sg.setColor(color);
-				sg.fill(new java.awt.Rectangle(x, z, 1, 1));
-			}
-		}
+		long start = System.nanoTime();
+		Object event = ExportMetrics.beginEncode();
 		try {
 			String filename = file.getName();
 			String extension = "";
 			int i = filename.lastIndexOf('.');
 			if (i >= 0) {
 				extension = filename.substring(i + 1);
-				javax.imageio.ImageIO.write(bi, extension, file);
+				if (extension.equalsIgnoreCase("png")) {
+					// Streamed from the canvas, never holds the whole image
+					PngWriter.write(pixels, palette, file, progress);
+					ExportMetrics.encoded(event, start, file);
+					return true;
+				}
+				// Other formats need the whole image in one array
+				if (((long) width * height > Integer.MAX_VALUE)
+						|| (pixels instanceof MappedCanvas)) {
+					System.out.println("Error: Maps this large, or kept in a"
+							+ " scratch file, can only be saved as png.");
+					return false;
+				}
+				// The colorIds are used as indices into the palette, so the
+				// pixels can be written without converting them. Not every
+				// format supports indexed images, those get an RGB image.
+				progress.checkCancelled();
+				byte[] indices = new byte[width * height];
+				pixels.copyTo(indices);
+				progress.checkCancelled();
+				if (!javax.imageio.ImageIO.write(
+						createIndexedImage(indices, width, height), extension,
+						file)
+						&& !javax.imageio.ImageIO.write(createRGBImage(),
+								extension, file)) {
+					System.out.println("Error: No image writer for file type: "
+							+ extension);
+					return false;
+				}
 			} else {
 				System.out
 						.println("Error: Where not able to determine file extension.");
@@ -573,9 +669,45 @@ class Map {
 			System.out.println("Message = " + e.getMessage());
 			return false;
 		}
+		progress.rowsEncoded(height, height);
+		ExportMetrics.encoded(event, start, file);
 		return true;
 	}
 
+	// Writes the map as a palette PNG to out, out is not closed.
+	public void writePng(java.io.OutputStream out) throws IOException {
+		PngWriter.write(pixels, palette, out);
+	}
+
+	// Creates an image that uses the colorIds in indices, row by row, as
+	// indices into the palette.
+	static java.awt.image.BufferedImage createIndexedImage(byte[] indices,
+			int width, int height) {
+		java.awt.image.DataBufferByte buffer = new java.awt.image.DataBufferByte(
+				indices, indices.length);
+		java.awt.image.WritableRaster raster = java.awt.image.Raster
+				.createInterleavedRaster(buffer, width, height, width, 1,
+						new int[] { 0 }, null);
+		return new java.awt.image.BufferedImage(paletteColorModel, raster,
+				false, null);
+	}
+
+	private java.awt.image.BufferedImage createRGBImage() {
+		java.awt.image.BufferedImage bi = new java.awt.image.BufferedImage(
+				width, height, java.awt.image.BufferedImage.TYPE_INT_RGB);
+		int[] rgb = ((java.awt.image.DataBufferInt) bi.getRaster()
+				.getDataBuffer()).getData();
+		byte[] row = new byte[width];
+		for (int z = 0; z < height; ++z) {
+			pixels.readRow(0, z, row, 0, width);
+			int rowStart = z * width;
+			for (int x = 0; x < width; ++x) {
+				rgb[rowStart + x] = palette[row[x] & 0xFF];
+			}
+		}
+		return bi;
+	}
+
 	/**
 	 * @param overlap
 	 *            Output stored in this parameter
@@ -586,186 +718,201 @@ class Map {
 		int map1BeginZ = map1.getBeginZ();
 		int map1EndX = map1.getEndX();
 		int map1EndZ = map1.getEndZ();
-		int map2BeginX = map1.getBeginX();
-		int map2BeginZ = map1.getBeginZ();
-		int map2EndX = map1.getEndX();
-		int map2EndZ = map1.getEndZ();
+		int map2BeginX = map2.getBeginX();
+		int map2BeginZ = map2.getBeginZ();
+		int map2EndX = map2.getEndX();
+		int map2EndZ = map2.getEndZ();
 
-		// Do we have an overlap?
+		// Do we have an overlap? The end values are not part of the maps.
 
-		if (map1BeginX > map2EndX)
+		if (map1BeginX >= map2EndX)
 			return false;
-		if (map2BeginX > map1EndX)
+		if (map2BeginX >= map1EndX)
 			return false;
-		if (map1BeginZ > map2EndZ)
+		if (map1BeginZ >= map2EndZ)
 			return false;
-		if (map2BeginZ > map1EndZ)
+		if (map2BeginZ >= map1EndZ)
 			return false;
 
 		// Now we know we have an overlap
 		// Get begin and end values
 		overlap.beginX = Math.max(map1BeginX, map2BeginX);
 		overlap.beginZ = Math.max(map1BeginZ, map2BeginZ);
-		overlap.endX = Math.max(map1EndX, map2EndX);
-		overlap.endZ = Math.max(map1EndZ, map2EndZ);
+		overlap.endX = Math.min(map1EndX, map2EndX);
+		overlap.endZ = Math.min(map1EndZ, map2EndZ);
 
 		return true;
 	}
 
 	byte readPixel(int x, int z) {
-		return pixels[x + z * width];
+		return pixels.get(x, z);
 	}
 
 	void writePixel(int x, int z, byte pixel) {
-		pixels[x + z * width] = pixel;
-	}
-
-	// Decomposes colorId to baseColorId and shadeId and counts baseColorId
-	// When returning result shadeId is added again.
-	private class ColorCounter {
-		private int[] colorCounts = new int[N_BASE_COLORS];
-		private int shadeSum = 0;
-		private int nCounts = 0;
-		
-		public void reset() {
-			shadeSum = 0;
-			nCounts = 0;
-			for(int i=0; i<N_BASE_COLORS; ++i) {
-				colorCounts[i] = 0;
-			}
-		}
-
-		private int getShadeValue() {
-			return (int) ((double) shadeSum / (double) nCounts);
-		}
+		pixels.set(x, z, pixel);
+	}
 
-		public void count(int colorId) {
-			assert (colorId >= 0);
-			int baseColorId = getBaseColorId(colorId);
-			colorCounts[baseColorId] += 1;
-			shadeSum += shadeIdToValue(getColorShadeId(colorId));
-			++nCounts;
-		}
+	// Sets the pixels in the rectangle to the unexplored color.
+	void clearRect(int beginX, int beginZ, int endX, int endZ) {
+		pixels.clearRect(beginX, beginZ, endX, endZ);
+	}
 
-		// @return colorId
-		public int getHighestRes() {
-			int n = colorCounts.length;
-			int highestCount = 0;
-			int highestRes = 0;
-			for (int i = 0; i < n; ++i) {
-				if (colorCounts[i] > highestCount) {
-					highestCount = colorCounts[i];
-					assert (i >= 0 && i < 128);
-					highestRes = i;
-				}
-			}
-			int shadeId = shadeValueToId(getShadeValue());
-			return makeColorId(highestRes, shadeId);
-		}
+	// Writes all pixels in the format of the canvas.
+	void writePixels(DataOutputStream out) throws IOException {
+		pixels.write(out);
+	}
 
-	};
+	// Reads all pixels, in the format written by writePixels.
+	void readPixels(DataInputStream in) throws IOException {
+		pixels.read(in);
+	}
 
 	// this map will draw itself onto 'map'. Will skip drawing the pixels with
 	// the "unexplored" color.
 	public void drawToMap(Map map) {
-		Map lowResMap, highResMap;
+		drawToMap(map, 0, 0, map.width, map.height);
+	}
+
+	// Like drawToMap(Map) but only writes the pixels of 'map' inside the
+	// clip rectangle, given in pixel coordinates of 'map'. Every written pixel
+	// gets the same value as when drawing the whole map.
+	public void drawToMap(Map map, int clipBeginX, int clipBeginZ,
+			int clipEndX, int clipEndZ) {
 		Map readMap = this;
 		Map writeMap = map;
 		Rectangle overlap = new Rectangle();
 
-		// System.out.println("readmap scale = " + readMap.scale);
-		// System.out.println("writemap scale = " + writeMap.scale);
-
 		if (!calcOverlap(readMap, writeMap, overlap)) {
 			return;
 		}
 
-		int highResScale;
-		int lowResScale;
-
+		clipBeginX = Math.max(clipBeginX, 0);
+		clipBeginZ = Math.max(clipBeginZ, 0);
+		clipEndX = Math.min(clipEndX, writeMap.width);
+		clipEndZ = Math.min(clipEndZ, writeMap.height);
+
+		// if readMap has the lower resolution: copy same value to all write
+		// positions
+		// if writeMap has the lower resolution: count the occurances of each
+		// color in the read pixels, the most common one is written
+		long start = System.nanoTime();
+		long pixelsDrawn;
 		if (readMap.scale >= writeMap.scale) {
-			lowResMap = readMap;
-			highResMap = writeMap;
-			lowResScale = readMap.scale;
-			highResScale = writeMap.scale;
+			pixelsDrawn = drawUpscaled(writeMap, overlap, clipBeginX,
+					clipBeginZ, clipEndX, clipEndZ);
 		} else {
-			lowResMap = writeMap;
-			highResMap = readMap;
-			lowResScale = writeMap.scale;
-			highResScale = readMap.scale;
+			pixelsDrawn = drawDownscaled(writeMap, overlap, clipBeginX,
+					clipBeginZ, clipEndX, clipEndZ);
+		}
+		// The draw is counted by the part that holds the first row of the
+		// overlap
+		int firstRow = Math.max(writeMap.worldZToMapZ(overlap.beginZ), 0);
+		ExportMetrics.drawn(writeMap.scale - readMap.scale, System.nanoTime()
+				- start, pixelsDrawn, (firstRow >= clipBeginZ)
+				&& (firstRow < clipEndZ));
+	}
+
+	// Draws this map onto a map with the same or higher resolution, each
+	// pixel becomes a square of 2^(scale difference) pixels. The bounds are
+	// computed once, then whole rows are expanded with shifts and written,
+	// skipping the unexplored pixels.
+	// @return The number of pixels of writeMap that were drawn.
+	private long drawUpscaled(Map writeMap, Rectangle overlap, int clipBeginX,
+			int clipBeginZ, int clipEndX, int clipEndZ) {
+		int shift = scale - writeMap.scale;
+
+		// The overlap in pixels of this map
+		int readBeginX = worldXToMapX(overlap.beginX);
+		int readBeginZ = worldZToMapZ(overlap.beginZ);
+		int nReadX = worldXToMapX(overlap.endX) - readBeginX;
+		int nReadZ = worldZToMapZ(overlap.endZ) - readBeginZ;
+		// The pixels written, limited to the clip rectangle
+		int writeBeginX = writeMap.worldXToMapX(overlap.beginX);
+		int writeBeginZ = writeMap.worldZToMapZ(overlap.beginZ);
+		int beginX = Math.max(writeBeginX, clipBeginX);
+		int beginZ = Math.max(writeBeginZ, clipBeginZ);
+		int endX = Math.min(writeBeginX + (nReadX << shift), clipEndX);
+		int endZ = Math.min(writeBeginZ + (nReadZ << shift), clipEndZ);
+		if (beginX >= endX || beginZ >= endZ) {
+			return 0;
 		}
 
-		assert (lowResScale >= highResScale);
-
-		int scaleMult = 1;
-		for (int i = highResScale; i < lowResScale; ++i) {
-			scaleMult *= 2;
+		if (!loadPixels()) {
+			return 0;
 		}
 
-		int highResBeginX = highResMap.worldXToMapX(overlap.beginX);
-		int highResBeginZ = highResMap.worldZToMapZ(overlap.beginZ);
-		// int highResEndX = highResMap.worldXToMapX(overlap.endX);
-		// int highResEndZ = highResMap.worldZToMapZ(overlap.endZ);
-		int lowResBeginX = lowResMap.worldXToMapX(overlap.beginX);
-		int lowResBeginZ = lowResMap.worldZToMapZ(overlap.beginZ);
-		int lowResEndX = lowResMap.worldXToMapX(overlap.endX);
-		int lowResEndZ = lowResMap.worldZToMapZ(overlap.endZ);
-
-		int nXIterations = lowResEndX - lowResBeginX;
-		int nZIterations = lowResEndZ - lowResBeginZ;
-		
-		ColorCounter colorCounter = new ColorCounter();
-
-		for (int z = 0; z < nZIterations; ++z) {
-			for (int x = 0; x < nXIterations; ++x) {
-
-				int lowX = lowResBeginX + x;
-				int lowZ = lowResBeginZ + z;
-
-				// if lowResMap == readMap : copy same value to all write
-				// positions
-				// if lowresMap == writeMap : Use an array of all possible
-				// colors/block types and count the occurances of each kind
-				// The kind that has the highest kind is written to the writeMap
-
-				if (lowResMap == readMap) {
-					assert (highResMap == writeMap);
-					byte pixel = lowResMap.readPixel(lowX, lowZ);
-					// If pixel is not the explored color, then write pixels
-					if (pixel != 0) {
-						for (int subX = 0; subX < scaleMult; ++subX) {
-							for (int subZ = 0; subZ < scaleMult; ++subZ) {
-								int highX = highResBeginX + x * scaleMult
-										+ subX;
-								int highZ = highResBeginZ + z * scaleMult
-										+ subZ;
-								highResMap.writePixel(highX, highZ, pixel);
-							}
-						}
-					}
-				} else {
-					assert (lowResMap == writeMap);
-					assert (highResMap == readMap);
-					colorCounter.reset();
-					byte pixel;
-
-					for (int subX = 0; subX < scaleMult; ++subX) {
-						for (int subZ = 0; subZ < scaleMult; ++subZ) {
-							int highX = highResBeginX + x * scaleMult + subX;
-							int highZ = highResBeginZ + z * scaleMult + subZ;
-							pixel = highResMap.readPixel(highX, highZ);
-							colorCounter.count(pixel);
-						}
-					}
-					pixel = (byte) colorCounter.getHighestRes();
-					// If pixel represents the unexplored color, then do not
-					// write the pixel.
-					if (isExplored(pixel)) {
-						lowResMap.writePixel(lowX, lowZ, pixel);
+		int n = endX - beginX;
+		// The read pixels needed for one written row
+		int readX = readBeginX + ((beginX - writeBeginX) >> shift);
+		int nRead = readBeginX + ((endX - 1 - writeBeginX) >> shift) + 1
+				- readX;
+		// Position of beginX inside its square
+		int subX = (beginX - writeBeginX) & ((1 << shift) - 1);
+		byte[] readRow = new byte[nRead];
+		byte[] writeRow = (shift == 0) ? readRow : new byte[n];
+		int lastReadZ = -1;
+		for (int z = beginZ; z < endZ; ++z) {
+			int readZ = readBeginZ + ((z - writeBeginZ) >> shift);
+			// Consecutive written rows often come from the same read row
+			if (readZ != lastReadZ) {
+				pixels.readRow(readX, readZ, readRow, 0, nRead);
+				if (shift > 0) {
+					for (int i = 0; i < n; ++i) {
+						writeRow[i] = readRow[(subX + i) >> shift];
 					}
 				}
+				lastReadZ = readZ;
+			}
+			writeMap.pixels.writeRowExplored(beginX, z, writeRow, 0, n);
+		}
+		return (long) n * (endZ - beginZ);
+	}
+
+	// Draws this map onto a map with lower resolution, each written pixel is
+	// made from a square of 2^(scale difference) pixels by a Downsampler.
+	// The rows of squares are read as bands and combined a row at a time.
+	// @return The number of pixels of writeMap that were drawn.
+	private long drawDownscaled(Map writeMap, Rectangle overlap,
+			int clipBeginX, int clipBeginZ, int clipEndX, int clipEndZ) {
+		int shift = writeMap.scale - scale;
+		int scaleMult = 1 << shift;
+
+		int readBeginX = worldXToMapX(overlap.beginX);
+		int readBeginZ = worldZToMapZ(overlap.beginZ);
+		// The pixels written, limited to the clip rectangle and to the
+		// squares that are inside this map
+		int writeBeginX = writeMap.worldXToMapX(overlap.beginX);
+		int writeBeginZ = writeMap.worldZToMapZ(overlap.beginZ);
+		int beginX = Math.max(writeBeginX, clipBeginX);
+		int beginZ = Math.max(writeBeginZ, clipBeginZ);
+		int endX = Math.min(writeMap.worldXToMapX(overlap.endX), clipEndX);
+		int endZ = Math.min(writeMap.worldZToMapZ(overlap.endZ), clipEndZ);
+		endX = Math.min(endX, writeBeginX + ((width - readBeginX) >> shift));
+		endZ = Math.min(endZ, writeBeginZ + ((height - readBeginZ) >> shift));
+		if (beginX >= endX || beginZ >= endZ) {
+			return 0;
+		}
+
+		if (!loadPixels()) {
+			return 0;
+		}
+
+		int n = endX - beginX;
+		int readX = readBeginX + ((beginX - writeBeginX) << shift);
+		int nRead = n << shift;
+		byte[] band = new byte[nRead * scaleMult];
+		byte[] writeRow = new byte[n];
+		Downsampler downsampler = new Downsampler(shift);
+		for (int z = beginZ; z < endZ; ++z) {
+			int readZ = readBeginZ + ((z - writeBeginZ) << shift);
+			for (int row = 0; row < scaleMult; ++row) {
+				pixels.readRow(readX, readZ + row, band, row * nRead, nRead);
 			}
+			downsampler.downsampleRow(band, 0, nRead, writeRow, 0, n);
+			// Pixels that represent the unexplored color are not written
+			writeMap.pixels.writeRowExplored(beginX, z, writeRow, 0, n);
 		}
+		return (long) n * (endZ - beginZ);
 	}
 
 }
@@ -1,23 +1,39 @@
 package ts.mcmapexporter;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.util.ArrayList;
-
-// TODO: Add ability to read a list of map id's in a file and only include those id's in the list.
-//       This will be called a Map configuration, each Map configuration have a name (based on the name of the file) and
-//       a dimension attribute (overworld/nether/end) Parser will read the beginning of the map and
-//       look for "Overworld" "Nether" or "End", "Overworld" is default. The rest of the file is a list of numbers which
-//       corresponds to Minecraft Map item's Id's.
-//       The program will create a list of Map configuration at startup and enter the name of each one into a JComboBox.
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class MapCollection {
 	private ArrayList<Map> maps;
 	int dimension;
+	private MapIndex index;
+	// Number of threads used to load and combine the maps.
+	private int parallelism;
+	// Built from the sorted maps when first needed
+	private MapGrid grid;
+	private ExportProgress progress;
+	// If not null combined maps keep their pixels in scratch files here
+	private Path scratchDirectory = null;
+
+	// Number of maps that have their pixels in memory at the same time when
+	// combining in parallel.
+	private static final int PIXEL_BATCH_SIZE = 1024;
 
-	class MapScaleComparator implements java.util.Comparator<Map> {
+	static class MapScaleComparator implements java.util.Comparator<Map> {
 		public int compare(Map m1, Map m2) {
 			if (m1.getScale() < m2.getScale())
 				return 1;
@@ -32,44 +48,457 @@ class MapCollection {
 		}
 	}
 
+	// What is shared by the tasks that read the files of one scan.
+	private static class Scan {
+		public File[] files;
+		// The map and dimension of files[i] are stored at index i
+		public Map[] loaded;
+		public int[] dimensions;
+		public MapIndex index;
+		public ExportProgress progress;
+		public AtomicInteger nRead = new AtomicInteger();
+
+		public Scan(File[] files, MapIndex index, ExportProgress progress) {
+			this.files = files;
+			this.loaded = new Map[files.length];
+			this.dimensions = new int[files.length];
+			this.index = index;
+			this.progress = progress;
+		}
+
+		public void load(int i) throws java.io.IOException {
+			progress.checkCancelled();
+			loaded[i] = loadMap(files[i], index, dimensions, i);
+			progress.mapsLoaded(nRead.incrementAndGet(), files.length);
+		}
+	}
+
+	// Reads the headers of files[begin] to files[end - 1] of the scan, splits
+	// itself until there are few enough files left to read them directly.
+	private static class LoadTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private static final int MAX_FILES_PER_TASK = 16;
+
+		private Scan scan;
+		private int begin;
+		private int end;
+
+		public LoadTask(Scan scan, int begin, int end) {
+			this.scan = scan;
+			this.begin = begin;
+			this.end = end;
+		}
+
+		protected void compute() {
+			if (end - begin > MAX_FILES_PER_TASK) {
+				int middle = (begin + end) >>> 1;
+				invokeAll(new LoadTask(scan, begin, middle), new LoadTask(
+						scan, middle, end));
+				return;
+			}
+			for (int i = begin; i < end; ++i) {
+				try {
+					scan.load(i);
+				} catch (java.io.IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		}
+	}
+
+	private static class LoadPixelsTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private Map map;
+		private ExportProgress progress;
+
+		public LoadPixelsTask(Map map, ExportProgress progress) {
+			this.map = map;
+			this.progress = progress;
+		}
+
+		protected void compute() {
+			progress.checkCancelled();
+			map.loadPixels();
+		}
+	}
+
+	// Draws maps, in order, into the rows beginZ to endZ of the combined map.
+	// Only the maps in 'stripeMaps' are drawn, the sorted indices of the ones
+	// that cover the stripe.
+	private static class DrawStripeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private List<Map> maps;
+		private int[] stripeMaps;
+		private int first;
+		private int end;
+		private Map cMap;
+		private int beginZ;
+		private int endZ;
+		private ExportProgress progress;
+
+		// Draws the maps from index first to end - 1.
+		public DrawStripeTask(List<Map> maps, int[] stripeMaps, int first,
+				int end, Map cMap, int beginZ, int endZ,
+				ExportProgress progress) {
+			this.maps = maps;
+			this.stripeMaps = stripeMaps;
+			this.first = first;
+			this.end = end;
+			this.cMap = cMap;
+			this.beginZ = beginZ;
+			this.endZ = endZ;
+			this.progress = progress;
+		}
+
+		protected void compute() {
+			for (int i : stripeMaps) {
+				if (i < first)
+					continue;
+				if (i >= end)
+					break;
+				progress.checkCancelled();
+				maps.get(i).drawToMap(cMap, 0, beginZ, cMap.getWidth(), endZ);
+			}
+		}
+	}
+
 	public MapCollection(Path directory, int dimension)
 			throws java.io.IOException {
+		this(directory, dimension, 1);
+	}
+
+	/**
+	 * @param parallelism
+	 *            Number of threads used to read the map files, 1 reads them on
+	 *            the calling thread.
+	 */
+	public MapCollection(Path directory, int dimension, int parallelism)
+			throws java.io.IOException {
+		this(directory, dimension, parallelism, null);
+	}
+
+	/**
+	 * @param parallelism
+	 *            Number of threads used to read the map files and to combine
+	 *            them, 1 does everything on the calling thread.
+	 * @param index
+	 *            Headers of unchanged files are taken from the index instead of
+	 *            reading the file, and the index is updated with the headers of
+	 *            new or changed files. May be null.
+	 */
+	public MapCollection(Path directory, int dimension, int parallelism,
+			MapIndex index) throws java.io.IOException {
+		this(directory, dimension, parallelism, index, ExportProgress.NONE);
+	}
+
+	/**
+	 * @param progress
+	 *            Receives the progress of loading, combining and exporting the
+	 *            maps, and stops them if it is cancelled.
+	 */
+	public MapCollection(Path directory, int dimension, int parallelism,
+			MapIndex index, ExportProgress progress)
+			throws java.io.IOException {
+		this(dimension, parallelism, index, progress);
+		scan(directory, new MapCollection[] { this }, parallelism, index,
+				progress);
+	}
+
+	/**
+	 * Creates a collection of the maps in a configuration. Only the files of
+	 * those maps are opened, the directory is not listed. Files that do not
+	 * exist and maps of other dimensions are skipped. Maps that are sorted
+	 * as equal are drawn in the order of the configuration.
+	 */
+	public MapCollection(Path directory, MapConfiguration configuration,
+			int parallelism, MapIndex index, ExportProgress progress)
+			throws java.io.IOException {
+		this(configuration.dimension, parallelism, index, progress);
+		long start = System.nanoTime();
+		Object event = ExportMetrics.beginScan();
+		File[] files = configuration.getFiles(directory);
+		load(files, new MapCollection[] { this }, parallelism, index,
+				progress);
+		finishScan(directory, new MapCollection[] { this }, files.length,
+				start, event);
+	}
+
+	private MapCollection(int dimension, int parallelism, MapIndex index,
+			ExportProgress progress) {
 		maps = new ArrayList<Map>();
 		this.dimension = dimension;
+		this.index = index;
+		this.parallelism = parallelism;
+		this.progress = progress;
+	}
+
+	/**
+	 * Creates one collection per dimension from a single scan of the
+	 * directory, every file is only read once no matter how many dimensions
+	 * there are. The collections are meant to be combined at the same time,
+	 * so the threads are divided between them.
+	 * 
+	 * @param parallelism
+	 *            Number of threads used to read the map files, and in total
+	 *            to combine the collections.
+	 * @return The collection of dimensions[i] at index i.
+	 */
+	public static MapCollection[] loadDimensions(Path directory,
+			int[] dimensions, int parallelism, MapIndex index,
+			ExportProgress progress) throws java.io.IOException {
+		MapCollection[] collections = new MapCollection[dimensions.length];
+		int combineParallelism = Math.max(1, parallelism / dimensions.length);
+		for (int i = 0; i < dimensions.length; ++i) {
+			collections[i] = new MapCollection(dimensions[i],
+					combineParallelism, index, progress);
+		}
+		scan(directory, collections, parallelism, index, progress);
+		return collections;
+	}
+
+	// Reads the headers of all files in the directory and adds each map to
+	// the collections of its dimension.
+	private static void scan(Path directory, MapCollection[] collections,
+			int parallelism, MapIndex index, ExportProgress progress)
+			throws java.io.IOException {
+		long start = System.nanoTime();
+		Object event = ExportMetrics.beginScan();
 		File dir = directory.toFile();
+		int nFiles = 0;
 
 		if (dir.isDirectory()) {
 			File[] files = dir.listFiles();
-			for (File file : files) {
-				if (!file.isFile())
-					continue;
-				if (!couldBeAMap(file))
-					continue;
-				Map.ReadResult mapDimension = new Map.ReadResult();
-				Map map = new Map(file, mapDimension);
-				if (map.isValid() && (mapDimension.value == dimension)) {
-					maps.add(map);
+			nFiles = files.length;
+			if (index != null) {
+				index.retain(files);
+			}
+			load(files, collections, parallelism, index, progress);
+		}
+		finishScan(directory, collections, nFiles, start, event);
+	}
+
+	// Reads the headers of the files and adds each map to the collections of
+	// its dimension.
+	private static void load(File[] files, MapCollection[] collections,
+			int parallelism, MapIndex index, ExportProgress progress)
+			throws java.io.IOException {
+		// Each map is stored at the index of its file so the order is the
+		// same no matter which thread loaded it.
+		Scan scan = new Scan(files, index, progress);
+		if (parallelism > 1) {
+			ForkJoinPool pool = new ForkJoinPool(parallelism);
+			try {
+				pool.invoke(new LoadTask(scan, 0, files.length));
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			} finally {
+				pool.shutdown();
+			}
+		} else {
+			for (int i = 0; i < files.length; ++i) {
+				scan.load(i);
+			}
+		}
+		Map[] loaded = scan.loaded;
+		int[] dimensions = scan.dimensions;
+		for (int i = 0; i < loaded.length; ++i) {
+			if (loaded[i] == null)
+				continue;
+			boolean used = false;
+			for (MapCollection collection : collections) {
+				if (collection.dimension == dimensions[i]) {
+					collection.maps.add(loaded[i]);
+					ExportMetrics.mapsLoaded.increment();
+					used = true;
 				}
 			}
+			if (!used) {
+				ExportMetrics.skipped(ExportMetrics.SKIP_OTHER_DIMENSION);
+			}
 		}
+	}
 
+	// Sorts the maps of the collections and records the scan.
+	private static void finishScan(Path directory,
+			MapCollection[] collections, int nFiles, long start,
+			Object event) {
 		// Sort the maps by scale value. High scales first, low scales last.
+		// The sort is stable so maps that compare equal keep the order of
+		// the directory listing.
 		MapScaleComparator c = new MapScaleComparator();
-		java.util.Collections.sort(maps, c);
+		int nMaps = 0;
+		for (MapCollection collection : collections) {
+			java.util.Collections.sort(collection.maps, c);
+			nMaps += collection.maps.size();
+		}
+		ExportMetrics.scanNanos.add(System.nanoTime() - start);
+		ExportMetrics.filesScanned.add(nFiles);
+		ExportMetrics.endScan(event, directory.toString(), nFiles, nMaps);
+	}
+
+	// Reads the header of a file and stores its dimension in dimensions[i].
+	// @return null if it is not a valid map.
+	private static Map loadMap(File file, MapIndex index, int[] dimensions,
+			int i) throws java.io.IOException {
+		if (!file.isFile()) {
+			ExportMetrics.skipped(ExportMetrics.SKIP_NOT_A_FILE);
+			return null;
+		}
+		if (!couldBeAMap(file)) {
+			ExportMetrics.skipped(ExportMetrics.SKIP_NAME);
+			return null;
+		}
+		if (index != null) {
+			MapIndex.Entry entry = index.lookup(file);
+			if (entry != null) {
+				ExportMetrics.headersFromIndex.increment();
+				if (!entry.valid) {
+					ExportMetrics.skipped(ExportMetrics.SKIP_INVALID);
+					return null;
+				}
+				dimensions[i] = entry.dimension;
+				return new Map(file, entry.scale, entry.width, entry.height,
+						entry.centerX, entry.centerZ, entry.lastModified);
+			}
+		}
+		// Only the header is read here, the pixels are loaded when the map is
+		// drawn.
+		Map.ReadResult mapDimension = new Map.ReadResult();
+		Map map = new Map(file, mapDimension, false);
+		ExportMetrics.headersParsed.increment();
+		if (index != null) {
+			index.put(file, map, map.isValid(), mapDimension.value);
+		}
+		if (map.isValid()) {
+			dimensions[i] = mapDimension.value;
+			return map;
+		}
+		ExportMetrics.skipped(ExportMetrics.SKIP_INVALID);
+		return null;
+	}
+
+	/**
+	 * Reads the headers of changed files again, the maps of the files are
+	 * replaced by the new ones, or removed if a file is no longer a map of
+	 * this dimension. The pixels are read when the maps are drawn. A file
+	 * that cannot be read, like one the game is still writing or one that
+	 * was just deleted, is left out until it changes again.
+	 * 
+	 * @param files
+	 *            Files that were created, changed or deleted.
+	 * @return Entries of the removed and the added maps, which is what
+	 *         updateCombined needs to redraw the parts they cover.
+	 */
+	public List<MapIndex.Entry> reload(List<File> files) {
+		ArrayList<MapIndex.Entry> changes = new ArrayList<MapIndex.Entry>();
+		java.util.HashSet<File> changed = new java.util.HashSet<File>(files);
+		java.util.Iterator<Map> it = maps.iterator();
+		while (it.hasNext()) {
+			Map map = it.next();
+			if (changed.contains(map.getFile())) {
+				changes.add(MapIndex.entryFor(map, true, dimension));
+				it.remove();
+			}
+		}
+		int[] dimensions = new int[1];
+		for (File file : changed) {
+			if (index != null) {
+				index.remove(file);
+			}
+			Map map;
+			try {
+				map = loadMap(file, index, dimensions, 0);
+			} catch (java.io.IOException e) {
+				// Its old map is removed, so it is drawn as unexplored
+				System.out.println("Failed reading: " + file);
+				System.out.println("Exception message: " + e.getMessage());
+				continue;
+			}
+			if (map == null)
+				continue;
+			if (dimensions[0] != dimension) {
+				ExportMetrics.skipped(ExportMetrics.SKIP_OTHER_DIMENSION);
+				continue;
+			}
+			maps.add(map);
+			changes.add(MapIndex.entryFor(map, true, dimension));
+		}
+		// A changed map is usually the newest, so it is drawn last among
+		// the maps of its scale, just as after a new scan.
+		java.util.Collections.sort(maps, new MapScaleComparator());
+		grid = null;
+		return changes;
+	}
+
+	public MapGrid getGrid() {
+		if (grid == null) {
+			grid = new MapGrid(maps);
+		}
+		return grid;
+	}
+
+	// Finds the maps that cover the block at x, z, in drawing order.
+	public List<Map> findMaps(int x, int z) {
+		return getGrid().find(x, z);
+	}
+
+	// Finds the maps that cover some part of the rectangle, in world
+	// coordinates, in drawing order.
+	public List<Map> findMaps(int beginX, int beginZ, int endX, int endZ) {
+		return getGrid().find(beginX, beginZ, endX, endZ);
+	}
+
+	// Finds the indices of the maps that may draw into the rectangle given in
+	// pixels of the combined map. The rectangle is grown by one pixel in world
+	// coordinates so maps that only cover part of a pixel are included.
+	private BitSet findIndices(Map cMap, int beginX, int beginZ, int endX,
+			int endZ) {
+		int pixelSize = cMap.mapToWorld(1);
+		return getGrid().findIndices(
+				cMap.getBeginX() + cMap.mapToWorld(beginX) - pixelSize,
+				cMap.getBeginZ() + cMap.mapToWorld(beginZ) - pixelSize,
+				cMap.getBeginX() + cMap.mapToWorld(endX) + pixelSize,
+				cMap.getBeginZ() + cMap.mapToWorld(endZ) + pixelSize);
 	}
 
 	// Tries to find a reason why a file is not a minecraft map without opening
 	// the file
-	public boolean couldBeAMap(File file) {
-		return file.getName().substring(0, 3).equalsIgnoreCase("map");
+	public static boolean couldBeAMap(File file) {
+		return file.getName().regionMatches(true, 0, "map", 0, 3);
+	}
+
+	/**
+	 * Makes combined maps keep their pixels in memory mapped scratch files
+	 * in the directory instead of on the heap, see MappedCanvas. Meant for
+	 * maps that are too large for the heap, null keeps them on the heap.
+	 */
+	public void setScratchDirectory(Path scratchDirectory) {
+		this.scratchDirectory = scratchDirectory;
+	}
+
+	// Creates an empty combined map covering the bounds.
+	// @return null if the scratch file could not be created.
+	private Map newCombinedMap(int[] bounds, int scale) {
+		if (scratchDirectory == null)
+			return new Map(bounds[0], bounds[1], bounds[2], bounds[3], scale);
+		try {
+			return new Map(bounds[0], bounds[1], bounds[2], bounds[3], scale,
+					scratchDirectory);
+		} catch (java.io.IOException e) {
+			System.out.println("Failed creating a scratch file in: "
+					+ scratchDirectory);
+			System.out.println("Exception message: " + e.getMessage());
+			return null;
+		}
 	}
 
 	public int getNMaps() {
 		return maps.size();
 	}
 
-	// Combines the maps into one single map
-	public Map combine(int scale) {
+	// Finds the area covered by the maps.
+	// @return {beginX, beginZ, endX, endZ} or null if there are no maps.
+	int[] getBounds() {
 		// check maps not null
 		if (maps == null)
 			return null;
@@ -92,24 +521,363 @@ class MapCollection {
 		assert (endZ > Integer.MIN_VALUE);
 		assert (endX > beginX);
 		assert (endZ > beginZ);
+		return new int[] { beginX, beginZ, endX, endZ };
+	}
+
+	// Combines the maps into one single map
+	public Map combine(int scale) {
+		int[] bounds = getBounds();
+		if (bounds == null)
+			return null;
+		long start = System.nanoTime();
+		Object event = ExportMetrics.beginCombine();
 		// create map object
-		Map cMap = new Map(beginX, beginZ, endX, endZ, scale);
+		Map cMap = newCombinedMap(bounds, scale);
+		if (cMap == null)
+			return null;
 		// fill map with the data from maps.
-		for (Map map : maps) {
-			// maps should be sorted so highest scale maps is drawn first
-			// either use SortedList or use Collections.sort in the beginning of
-			// this function
-			map.drawToMap(cMap);
+		try {
+			if (parallelism > 1) {
+				combineParallel(cMap);
+			} else {
+				for (int i = 0; i < maps.size(); ++i) {
+					// maps should be sorted so highest scale maps is drawn
+					// first either use SortedList or use Collections.sort in
+					// the beginning of this function
+					progress.checkCancelled();
+					Map map = maps.get(i);
+					map.drawToMap(cMap);
+					map.releasePixels();
+					progress.mapsCombined(i + 1, maps.size());
+				}
+			}
+		} catch (RuntimeException e) {
+			// Cancelled, the caller never gets the map to release
+			cMap.releaseCanvas();
+			throw e;
 		}
+		ExportMetrics.combineNanos.add(System.nanoTime() - start);
+		ExportMetrics.endCombine(event, dimension, scale, maps.size());
 		// return result
 		return cMap;
 	}
 
+	// Splits the combined map into stripes of rows that are drawn by
+	// different threads. Every stripe gets all maps in the same order as the
+	// serial loop, so the result is identical. The stripes follow the tile
+	// rows of the canvas so two threads never write to the same tile. The
+	// maps are handled in batches to limit how many have their pixels loaded.
+	private void combineParallel(Map cMap) {
+		int stripeHeight = TiledCanvas.TILE_SIZE;
+		// Kept as indices rather than a set the size of the collection per
+		// stripe, most maps only cover a few stripes.
+		ArrayList<int[]> stripeMaps = new ArrayList<int[]>();
+		for (int z = 0; z < cMap.getHeight(); z += stripeHeight) {
+			int endZ = Math.min(z + stripeHeight, cMap.getHeight());
+			BitSet found = findIndices(cMap, 0, z, cMap.getWidth(), endZ);
+			int[] indices = new int[found.cardinality()];
+			int n = 0;
+			for (int i = found.nextSetBit(0); i >= 0; i = found
+					.nextSetBit(i + 1)) {
+				indices[n++] = i;
+			}
+			stripeMaps.add(indices);
+		}
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			for (int first = 0; first < maps.size(); first += PIXEL_BATCH_SIZE) {
+				List<Map> batch = maps.subList(first,
+						Math.min(first + PIXEL_BATCH_SIZE, maps.size()));
+				ArrayList<RecursiveAction> tasks;
+				tasks = new ArrayList<RecursiveAction>();
+				for (Map map : batch) {
+					tasks.add(new LoadPixelsTask(map, progress));
+				}
+				invokeAll(pool, tasks);
+				tasks.clear();
+				int end = first + batch.size();
+				for (int z = 0; z < cMap.getHeight(); z += stripeHeight) {
+					int[] stripe = stripeMaps.get(z / stripeHeight);
+					tasks.add(new DrawStripeTask(maps, stripe, first, end,
+							cMap, z, Math.min(z + stripeHeight,
+									cMap.getHeight()), progress));
+				}
+				for (RecursiveAction task : tasks) {
+					pool.execute(task);
+				}
+				// The maps of the batch are done in the same pace in all
+				// stripes, so each finished stripe is a share of them.
+				for (int i = 0; i < tasks.size(); ++i) {
+					tasks.get(i).join();
+					progress.mapsCombined(first + batch.size() * (i + 1)
+							/ tasks.size(), maps.size());
+				}
+				for (Map map : batch) {
+					map.releasePixels();
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static void invokeAll(ForkJoinPool pool,
+			List<RecursiveAction> tasks) {
+		for (RecursiveAction task : tasks) {
+			pool.execute(task);
+		}
+		for (RecursiveAction task : tasks) {
+			task.join();
+		}
+	}
+
+	/**
+	 * Redraws the parts of a combined map that are covered by maps that were
+	 * added, changed or removed since the combined map was created. Each part
+	 * is cleared and all maps covering it are drawn again in the usual order.
+	 * 
+	 * @param changes
+	 *            Index entries of the changed maps, with both the old and the
+	 *            new entry of each changed file.
+	 * @return true if any part was redrawn.
+	 */
+	public boolean updateCombined(Map cMap, List<MapIndex.Entry> changes) {
+		long start = System.nanoTime();
+		boolean updated = false;
+		for (MapIndex.Entry entry : changes) {
+			if (!entry.valid || (entry.dimension != dimension))
+				continue;
+			Map changed = new Map(null, entry.scale, entry.width,
+					entry.height, entry.centerX, entry.centerZ,
+					entry.lastModified);
+			// Rectangle in pixels of the combined map, grown by one pixel to
+			// include pixels that are only partly covered.
+			int beginX = Math.max(cMap.worldXToMapX(changed.getBeginX()) - 1,
+					0);
+			int beginZ = Math.max(cMap.worldZToMapZ(changed.getBeginZ()) - 1,
+					0);
+			int endX = Math.min(cMap.worldXToMapX(changed.getEndX()) + 1,
+					cMap.getWidth());
+			int endZ = Math.min(cMap.worldZToMapZ(changed.getEndZ()) + 1,
+					cMap.getHeight());
+			if (beginX >= endX || beginZ >= endZ)
+				continue;
+			cMap.clearRect(beginX, beginZ, endX, endZ);
+			BitSet found = findIndices(cMap, beginX, beginZ, endX, endZ);
+			for (int i = found.nextSetBit(0); i >= 0; i = found
+					.nextSetBit(i + 1)) {
+				progress.checkCancelled();
+				Map map = maps.get(i);
+				map.drawToMap(cMap, beginX, beginZ, endX, endZ);
+				map.releasePixels();
+			}
+			updated = true;
+		}
+		ExportMetrics.combineNanos.add(System.nanoTime() - start);
+		return updated;
+	}
+
+	/**
+	 * Combines the maps that cover a rectangle, in world coordinates, into a
+	 * new map of that size. The maps are read into copies of their own and
+	 * the maps in the collection are not changed, so several threads can do
+	 * this at the same time as long as the collection is not changed and the
+	 * grid is built.
+	 * 
+	 * @return The combined map, or null if no map covers the rectangle.
+	 */
+	public Map combineArea(int beginX, int beginZ, int endX, int endZ,
+			int scale) {
+		List<Map> found = findMaps(beginX, beginZ, endX, endZ);
+		if (found.isEmpty())
+			return null;
+		Map cMap = new Map(beginX, beginZ, endX, endZ, scale);
+		for (Map map : found) {
+			File file = map.getFile();
+			if (file == null)
+				continue;
+			try {
+				new Map(file, new Map.ReadResult()).drawToMap(cMap);
+			} catch (java.io.IOException e) {
+				System.out.println("Failed reading pixels from: " + file);
+			}
+		}
+		return cMap;
+	}
+
+	// Canvas files store a combined map so that a later export can update it
+	// with updateCombined instead of combining all maps again. The header
+	// holds everything the combined map was created from.
+	private static final int CANVAS_FORMAT = 2;
+
+	private Map loadCanvas(Path canvasFile, int[] bounds, int scale) {
+		if (!Files.isRegularFile(canvasFile))
+			return null;
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(Files.newInputStream(canvasFile)))) {
+			if ((in.readInt() != CANVAS_FORMAT)
+					|| (in.readInt() != dimension) || (in.readInt() != scale))
+				return null;
+			for (int i = 0; i < bounds.length; ++i) {
+				if (in.readInt() != bounds[i])
+					return null;
+			}
+			Map cMap = newCombinedMap(bounds, scale);
+			if (cMap == null)
+				return null;
+			try {
+				cMap.readPixels(in);
+			} catch (java.io.IOException e) {
+				cMap.releaseCanvas();
+				throw e;
+			}
+			return cMap;
+		} catch (java.io.IOException e) {
+			System.out.println("Could not read previous combined map: "
+					+ canvasFile);
+			return null;
+		}
+	}
+
+	private void saveCanvas(Path canvasFile, Map cMap, int[] bounds, int scale)
+			throws java.io.IOException {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(canvasFile)))) {
+			out.writeInt(CANVAS_FORMAT);
+			out.writeInt(dimension);
+			out.writeInt(scale);
+			for (int i = 0; i < bounds.length; ++i) {
+				out.writeInt(bounds[i]);
+			}
+			cMap.writePixels(out);
+		}
+	}
+
+	/**
+	 * Exports an image by updating the combined map stored in canvasFile by
+	 * the previous export, only the parts covered by changed maps are drawn
+	 * again. If there is no usable canvas file all maps are combined. The
+	 * image is not written again if nothing changed.
+	 */
+	public boolean exportImageIncremental(Path file, int scale,
+			Path canvasFile, List<MapIndex.Entry> changes) {
+		int[] bounds = getBounds();
+		if (bounds == null)
+			return false;
+		Map combinedMap = loadCanvas(canvasFile, bounds, scale);
+		boolean fromCanvas = (combinedMap != null);
+		if (!fromCanvas) {
+			System.out.println("Combining all maps.");
+			combinedMap = combine(scale);
+			if (combinedMap == null)
+				return false;
+		}
+		try {
+			if (fromCanvas && !updateCombined(combinedMap, changes)
+					&& Files.exists(file)) {
+				System.out.println("No maps have changed.");
+				return true;
+			}
+			if (!combinedMap.exportImage(file.toFile(), dimension, progress))
+				return false;
+			try {
+				saveCanvas(canvasFile, combinedMap, bounds, scale);
+			} catch (java.io.IOException e) {
+				System.out.println("Failed writing combined map: "
+						+ canvasFile);
+				System.out.println("Exception message: " + e.getMessage());
+				try {
+					// A partly written canvas must not be used by the next
+					// export
+					Files.deleteIfExists(canvasFile);
+				} catch (java.io.IOException e2) {
+				}
+			}
+			return true;
+		} finally {
+			combinedMap.releaseCanvas();
+		}
+	}
+
+	// Exports the combined map as a pyramid of PNG tiles, see TilePyramid.
+	public boolean exportTiles(Path directory, int scale) {
+		if (scale > TilePyramid.MAX_ZOOM) {
+			System.out.println("Error: Tiles can only be exported at scales 0"
+					+ " to " + TilePyramid.MAX_ZOOM + ".");
+			return false;
+		}
+		Map combinedMap = combine(scale);
+		if (combinedMap == null)
+			return false;
+		TilePyramid pyramid = new TilePyramid(combinedMap, directory,
+				progress);
+		try {
+			pyramid.write();
+		} catch (java.io.IOException e) {
+			System.out.println("Error: IOException, cannot write tiles to disk.");
+			System.out.println("Message = " + e.getMessage());
+			return false;
+		} finally {
+			combinedMap.releaseCanvas();
+		}
+		System.out.println("Tiles written: " + pyramid.getNTilesWritten()
+				+ ", zoom levels 0 to " + pyramid.getMaxZoom());
+		return true;
+	}
+
+	/**
+	 * Exports the maps at several scales. They are only combined at the
+	 * finest scale, every coarser combined map is shrunk from the one before
+	 * it, so the cost is close to that of a single export. A pixel is made
+	 * from the pixels of the finer image, not directly from the maps, so the
+	 * colors may differ a little from an image exported at that scale alone.
+	 * 
+	 * @param scales
+	 *            In increasing order, files[i] is the image for scales[i].
+	 */
+	public boolean exportImages(Path[] files, int[] scales) {
+		int[] bounds = getBounds();
+		if (bounds == null)
+			return false;
+		Map combinedMap = combine(scales[0]);
+		if (combinedMap == null)
+			return false;
+		try {
+			for (int i = 0; i < scales.length; ++i) {
+				if (i > 0 && scales[i] != scales[i - 1]) {
+					Map finer = combinedMap;
+					combinedMap = newCombinedMap(bounds, scales[i]);
+					if (combinedMap == null) {
+						finer.releaseCanvas();
+						return false;
+					}
+					try {
+						finer.drawToMap(combinedMap);
+					} finally {
+						finer.releaseCanvas();
+					}
+				}
+				if (!combinedMap.exportImage(files[i].toFile(), dimension,
+						progress))
+					return false;
+			}
+			return true;
+		} finally {
+			if (combinedMap != null) {
+				combinedMap.releaseCanvas();
+			}
+		}
+	}
+
 	public boolean exportImage(Path file, int scale) {
 		Map combinedMap = combine(scale);
 		if (combinedMap == null)
 			return false;
-		return combinedMap.exportImage(file.toFile(), dimension);
+		try {
+			return combinedMap.exportImage(file.toFile(), dimension, progress);
+		} finally {
+			combinedMap.releaseCanvas();
+		}
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,129 @@
+package ts.mcmapexporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+// A chosen set of maps, read from a text file. The name of the configuration
+// is the name of the file. The first line may name the dimension, Overworld,
+// Nether or End, and Overworld is used if it does not. The rest of the file
+// is the ids of the maps, the numbers in the names of the map_<id>.dat
+// files, separated by spaces, commas or new lines.
+//
+// A collection made from a configuration opens the files of those maps
+// directly, the map directory is never listed.
+class MapConfiguration {
+
+	// The configurations found by findAll are the files with this extension
+	public static final String EXTENSION = ".txt";
+
+	public String name;
+	public int dimension = Map.OVERWORLD;
+	// In the order of the file, without duplicates
+	public int[] ids;
+
+	/**
+	 * Reads a configuration file.
+	 *
+	 * @throws IOException
+	 *             If the file can not be read or holds something that is not
+	 *             a map id.
+	 */
+	public static MapConfiguration read(Path file) throws IOException {
+		MapConfiguration configuration = new MapConfiguration();
+		String name = file.getFileName().toString();
+		if (name.endsWith(EXTENSION)) {
+			name = name.substring(0, name.length() - EXTENSION.length());
+		}
+		configuration.name = name;
+		List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		LinkedHashSet<Integer> ids = new LinkedHashSet<Integer>();
+		boolean first = true;
+		for (String line : lines) {
+			line = line.trim();
+			if (line.isEmpty())
+				continue;
+			if (first) {
+				first = false;
+				int dimension = Combiner.parseDimension(line);
+				if (dimension != Map.UNKNOWN_DIMENSION) {
+					configuration.dimension = dimension;
+					continue;
+				}
+			}
+			for (String id : line.split("[\\s,]+")) {
+				if (id.isEmpty())
+					continue;
+				try {
+					ids.add(Integer.parseInt(id));
+				} catch (NumberFormatException e) {
+					throw new IOException("Not a map id in " + file + ": "
+							+ id);
+				}
+			}
+		}
+		configuration.ids = new int[ids.size()];
+		int i = 0;
+		for (int id : ids) {
+			configuration.ids[i++] = id;
+		}
+		return configuration;
+	}
+
+	/**
+	 * Reads every configuration in a directory, sorted by name. Files that
+	 * can not be read are skipped, the reason is printed.
+	 *
+	 * @return An empty list if the directory does not exist.
+	 */
+	public static List<MapConfiguration> findAll(Path directory) {
+		List<MapConfiguration> configurations;
+		configurations = new ArrayList<MapConfiguration>();
+		if (!Files.isDirectory(directory))
+			return configurations;
+		List<Path> files = new ArrayList<Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+				directory, "*" + EXTENSION)) {
+			for (Path file : stream) {
+				files.add(file);
+			}
+		} catch (IOException e) {
+			System.out.println("Failed reading map configurations from: "
+					+ directory);
+			System.out.println("Exception message: " + e.getMessage());
+			return configurations;
+		}
+		java.util.Collections.sort(files);
+		for (Path file : files) {
+			try {
+				configurations.add(read(file));
+			} catch (IOException e) {
+				System.out.println("Failed reading map configuration: "
+						+ file);
+				System.out.println("Exception message: " + e.getMessage());
+			}
+		}
+		return configurations;
+	}
+
+	// The files of the maps in a map directory.
+	public File[] getFiles(Path directory) {
+		File dir = directory.toFile();
+		File[] files = new File[ids.length];
+		for (int i = 0; i < ids.length; ++i) {
+			files[i] = new File(dir, "map_" + ids[i] + ".dat");
+		}
+		return files;
+	}
+
+	public String toString() {
+		return name;
+	}
+
+}
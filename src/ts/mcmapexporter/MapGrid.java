@@ -0,0 +1,110 @@
+package ts.mcmapexporter;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+// Spatial index over the maps of a collection. The world is divided into
+// square cells and every cell lists the maps that cover some part of it, so
+// finding the maps at a location only has to look at a few cells instead of
+// every map. Results are always in the order of the list the grid was built
+// from.
+class MapGrid {
+
+	// 1024 blocks, a map of the highest scale covers at most 3x3 cells
+	private static final int CELL_SHIFT = 10;
+
+	private List<Map> maps;
+	private HashMap<Long, IntList> cells = new HashMap<Long, IntList>();
+
+	// Growable list of map indices, avoids boxing every index.
+	private static class IntList {
+		public int[] values = new int[4];
+		public int size = 0;
+
+		public void add(int value) {
+			if (size == values.length) {
+				values = java.util.Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+	}
+
+	public MapGrid(List<Map> maps) {
+		this.maps = maps;
+		for (int i = 0; i < maps.size(); ++i) {
+			Map map = maps.get(i);
+			if (map.getEndX() <= map.getBeginX()
+					|| map.getEndZ() <= map.getBeginZ())
+				continue;
+			int cellBeginX = map.getBeginX() >> CELL_SHIFT;
+			int cellBeginZ = map.getBeginZ() >> CELL_SHIFT;
+			int cellEndX = (map.getEndX() - 1) >> CELL_SHIFT;
+			int cellEndZ = (map.getEndZ() - 1) >> CELL_SHIFT;
+			for (int cellZ = cellBeginZ; cellZ <= cellEndZ; ++cellZ) {
+				for (int cellX = cellBeginX; cellX <= cellEndX; ++cellX) {
+					Long key = cellKey(cellX, cellZ);
+					IntList cell = cells.get(key);
+					if (cell == null) {
+						cell = new IntList();
+						cells.put(key, cell);
+					}
+					cell.add(i);
+				}
+			}
+		}
+	}
+
+	private static Long cellKey(int cellX, int cellZ) {
+		return Long.valueOf(((long) cellX << 32) | (cellZ & 0xFFFFFFFFL));
+	}
+
+	/**
+	 * Finds the maps that cover some part of the rectangle, given in world
+	 * coordinates with the end excluded.
+	 *
+	 * @return Indices of the maps in the list the grid was built from.
+	 */
+	public BitSet findIndices(int beginX, int beginZ, int endX, int endZ) {
+		BitSet found = new BitSet(maps.size());
+		if (endX <= beginX || endZ <= beginZ)
+			return found;
+		int cellBeginX = beginX >> CELL_SHIFT;
+		int cellBeginZ = beginZ >> CELL_SHIFT;
+		int cellEndX = (endX - 1) >> CELL_SHIFT;
+		int cellEndZ = (endZ - 1) >> CELL_SHIFT;
+		for (int cellZ = cellBeginZ; cellZ <= cellEndZ; ++cellZ) {
+			for (int cellX = cellBeginX; cellX <= cellEndX; ++cellX) {
+				IntList cell = cells.get(cellKey(cellX, cellZ));
+				if (cell == null)
+					continue;
+				for (int j = 0; j < cell.size; ++j) {
+					int i = cell.values[j];
+					Map map = maps.get(i);
+					if (map.getBeginX() < endX && map.getEndX() > beginX
+							&& map.getBeginZ() < endZ && map.getEndZ() > beginZ) {
+						found.set(i);
+					}
+				}
+			}
+		}
+		return found;
+	}
+
+	// Same as findIndices but gives the maps.
+	public List<Map> find(int beginX, int beginZ, int endX, int endZ) {
+		BitSet found = findIndices(beginX, beginZ, endX, endZ);
+		ArrayList<Map> res = new ArrayList<Map>(found.cardinality());
+		for (int i = found.nextSetBit(0); i >= 0; i = found.nextSetBit(i + 1)) {
+			res.add(maps.get(i));
+		}
+		return res;
+	}
+
+	// Finds the maps that cover the block at x, z.
+	public List<Map> find(int x, int z) {
+		return find(x, z, x + 1, z + 1);
+	}
+
+}
@@ -0,0 +1,212 @@
+package ts.mcmapexporter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+// Remembers the header of every map file in a directory together with the
+// size and modification time of the file. As long as a file has not changed
+// its map can be created from the index without opening the file.
+//
+// The index is stored as a text file, the first line identifies the format and
+// the map directory, then there is one tab separated line for each file:
+// name size lastModified valid dimension scale width height xCenter zCenter
+class MapIndex {
+
+	private static final String FORMAT = "mcmapexporter-index 1";
+
+	public static class Entry {
+		public String name;
+		public long size;
+		public long lastModified;
+		public boolean valid;
+		public int dimension;
+		public int scale;
+		public int width;
+		public int height;
+		public int centerX;
+		public int centerZ;
+	};
+
+	private String directory;
+	private HashMap<String, Entry> entries = new HashMap<String, Entry>();
+	private boolean changed = false;
+	// Entries that were added, replaced or removed since the index was
+	// loaded or saved. Both the old and the new entry of a changed file are included.
+	private ArrayList<Entry> changes = new ArrayList<Entry>();
+
+	private MapIndex(Path directory) {
+		this.directory = directory.toAbsolutePath().normalize().toString();
+	}
+
+	// Gives the path of the index file that belongs to an output file.
+	public static Path indexFileFor(Path outFile) {
+		return outFile.resolveSibling(outFile.getFileName() + ".index");
+	}
+
+	/**
+	 * Reads the index of a map directory. If the file does not exist, can not
+	 * be read or belongs to another directory an empty index is returned.
+	 */
+	public static MapIndex load(Path indexFile, Path directory) {
+		MapIndex index = new MapIndex(directory);
+		if (!Files.isRegularFile(indexFile))
+			return index;
+		try (BufferedReader reader = Files.newBufferedReader(indexFile,
+				StandardCharsets.UTF_8)) {
+			if (!FORMAT.equals(reader.readLine()))
+				return index;
+			if (!index.directory.equals(reader.readLine()))
+				return index;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				Entry entry = parseEntry(line);
+				if (entry != null) {
+					index.entries.put(entry.name, entry);
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Could not read map index: " + indexFile);
+			index.entries.clear();
+		}
+		return index;
+	}
+
+	private static Entry parseEntry(String line) {
+		String[] fields = line.split("\t");
+		if (fields.length != 10)
+			return null;
+		try {
+			Entry entry = new Entry();
+			entry.name = fields[0];
+			entry.size = Long.parseLong(fields[1]);
+			entry.lastModified = Long.parseLong(fields[2]);
+			entry.valid = fields[3].equals("1");
+			entry.dimension = Integer.parseInt(fields[4]);
+			entry.scale = Integer.parseInt(fields[5]);
+			entry.width = Integer.parseInt(fields[6]);
+			entry.height = Integer.parseInt(fields[7]);
+			entry.centerX = Integer.parseInt(fields[8]);
+			entry.centerZ = Integer.parseInt(fields[9]);
+			return entry;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the index if anything changed since it was loaded. The file is
+	 * replaced in one step so a crash can not leave a half written index.
+	 */
+	public synchronized void save(Path indexFile) throws IOException {
+		if (!changed)
+			return;
+		Path tmpFile = indexFile.resolveSibling(indexFile.getFileName()
+				+ ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(tmpFile,
+				StandardCharsets.UTF_8)) {
+			writer.write(FORMAT);
+			writer.newLine();
+			writer.write(directory);
+			writer.newLine();
+			for (Entry e : entries.values()) {
+				writer.write(e.name + "\t" + e.size + "\t" + e.lastModified
+						+ "\t" + (e.valid ? "1" : "0") + "\t" + e.dimension
+						+ "\t" + e.scale + "\t" + e.width + "\t" + e.height
+						+ "\t" + e.centerX + "\t" + e.centerZ);
+				writer.newLine();
+			}
+		}
+		Files.move(tmpFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+		changed = false;
+		changes.clear();
+	}
+
+	/**
+	 * @return The entry of the file if the file has not changed since the
+	 *         entry was stored, otherwise null.
+	 */
+	public Entry lookup(File file) {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(file.getName());
+		}
+		if (entry == null)
+			return null;
+		// The file is checked outside the lock so threads loading maps in
+		// parallel do not wait for each other's file system calls.
+		if ((entry.size != file.length())
+				|| (entry.lastModified != file.lastModified()))
+			return null;
+		return entry;
+	}
+
+	// Stores the header of a map that was read from file.
+	public synchronized void put(File file, Map map, boolean valid,
+			int dimension) {
+		Entry entry = entryFor(map, valid, dimension);
+		entry.name = file.getName();
+		entry.size = file.length();
+		Entry old = entries.put(entry.name, entry);
+		if (old != null) {
+			changes.add(old);
+		}
+		changes.add(entry);
+		changed = true;
+	}
+
+	// Creates an entry with the header of a map, without name and size.
+	public static Entry entryFor(Map map, boolean valid, int dimension) {
+		Entry entry = new Entry();
+		entry.lastModified = map.getLastModified();
+		entry.valid = valid;
+		entry.dimension = dimension;
+		entry.scale = map.getScale();
+		entry.width = map.getWidth();
+		entry.height = map.getHeight();
+		entry.centerX = map.getCenterX();
+		entry.centerZ = map.getCenterZ();
+		return entry;
+	}
+
+	// Forgets a file, so its header is read again the next time it is
+	// loaded even if its size and modification time look unchanged.
+	public synchronized void remove(File file) {
+		Entry old = entries.remove(file.getName());
+		if (old != null) {
+			changes.add(old);
+			changed = true;
+		}
+	}
+
+	// Removes the entries of files that are no longer in the directory.
+	public synchronized void retain(File[] files) {
+		HashSet<String> names = new HashSet<String>();
+		for (File file : files) {
+			names.add(file.getName());
+		}
+		java.util.Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (!names.contains(entry.name)) {
+				changes.add(entry);
+				it.remove();
+				changed = true;
+			}
+		}
+	}
+
+	public synchronized List<Entry> getChanges() {
+		return new ArrayList<Entry>(changes);
+	}
+
+}
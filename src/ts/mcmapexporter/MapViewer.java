@@ -0,0 +1,237 @@
+package ts.mcmapexporter;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+
+// Shows the maps of a collection as if they were combined, without ever
+// combining them all. The view is made of square tiles that are drawn from
+// the maps covering them when they first become visible. Drawing happens on
+// background threads, so panning and zooming never wait for it. The drawn
+// tiles are kept in a cache where the least recently shown are dropped
+// first.
+//
+// Drag to pan, use the mouse wheel to zoom. The zoom is the scale of the
+// tiles, scale s shows 2^s blocks per screen pixel.
+class MapViewer extends JPanel {
+	private static final long serialVersionUID = 1L;
+
+	private static final int TILE_SIZE = 256;
+	private static final int MAX_SCALE = 6;
+	// 512 tiles of 64 KB each
+	private static final int MAX_CACHED_TILES = 512;
+	private static final Color MISSING_TILE_COLOR = Color.GRAY;
+
+	// Only used on the event dispatch thread. Access order makes it drop the
+	// tile that was least recently painted.
+	private LinkedHashMap<TileKey, BufferedImage> cache;
+	// Tiles that are being drawn, only used on the event dispatch thread
+	private HashSet<TileKey> pending = new HashSet<TileKey>();
+
+	private ExecutorService renderers;
+	private MapCollection maps = null;
+	// Counts the collections shown, tiles of an earlier one are thrown away
+	private int generation = 0;
+
+	// The block at the center of the view, and the scale. Written on the
+	// event dispatch thread and read by the renderers to skip tiles that
+	// are no longer visible.
+	private volatile int centerX = 0;
+	private volatile int centerZ = 0;
+	private volatile int scale = 2;
+
+	public MapViewer() {
+		setBackground(MISSING_TILE_COLOR);
+		cache = new LinkedHashMap<TileKey, BufferedImage>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(
+					java.util.Map.Entry<TileKey, BufferedImage> eldest) {
+				return size() > MAX_CACHED_TILES;
+			}
+		};
+		renderers = Executors.newFixedThreadPool(Runtime.getRuntime()
+				.availableProcessors(), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "MapViewer renderer");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		MouseAdapter mouse = new MouseAdapter() {
+			private int lastX;
+			private int lastY;
+
+			public void mousePressed(MouseEvent e) {
+				lastX = e.getX();
+				lastY = e.getY();
+			}
+
+			public void mouseDragged(MouseEvent e) {
+				centerX -= (e.getX() - lastX) << scale;
+				centerZ -= (e.getY() - lastY) << scale;
+				lastX = e.getX();
+				lastY = e.getY();
+				repaint();
+			}
+
+			public void mouseWheelMoved(MouseWheelEvent e) {
+				zoom(e.getWheelRotation(), e.getX(), e.getY());
+			}
+		};
+		addMouseListener(mouse);
+		addMouseMotionListener(mouse);
+		addMouseWheelListener(mouse);
+	}
+
+	/**
+	 * Shows the maps of a collection, centered on them. Must be called on the
+	 * event dispatch thread.
+	 */
+	public void setMaps(MapCollection maps) {
+		Map.setBaseColors();
+		this.maps = maps;
+		++generation;
+		cache.clear();
+		pending.clear();
+		int[] bounds = maps.getBounds();
+		if (bounds != null) {
+			centerX = (int) (((long) bounds[0] + bounds[2]) / 2);
+			centerZ = (int) (((long) bounds[1] + bounds[3]) / 2);
+		}
+		repaint();
+	}
+
+	// Changes the scale by steps and keeps the block under x, y in place.
+	private void zoom(int steps, int x, int y) {
+		int newScale = Math.max(0, Math.min(scale + steps, MAX_SCALE));
+		if (newScale == scale)
+			return;
+		int dx = x - getWidth() / 2;
+		int dy = y - getHeight() / 2;
+		int blockX = centerX + (dx << scale);
+		int blockZ = centerZ + (dy << scale);
+		centerX = blockX - (dx << newScale);
+		centerZ = blockZ - (dy << newScale);
+		scale = newScale;
+		repaint();
+	}
+
+	// The block at the left or top edge of the view.
+	private int viewBeginX() {
+		return centerX - ((getWidth() / 2) << scale);
+	}
+
+	private int viewBeginZ() {
+		return centerZ - ((getHeight() / 2) << scale);
+	}
+
+	private boolean isVisible(TileKey key) {
+		if (key.scale != scale)
+			return false;
+		int tileSize = TILE_SIZE << key.scale;
+		long beginX = (long) key.x * tileSize;
+		long beginZ = (long) key.z * tileSize;
+		return beginX < viewBeginX() + ((long) getWidth() << scale)
+				&& beginX + tileSize > viewBeginX()
+				&& beginZ < viewBeginZ() + ((long) getHeight() << scale)
+				&& beginZ + tileSize > viewBeginZ();
+	}
+
+	protected void paintComponent(Graphics g) {
+		super.paintComponent(g);
+		if (maps == null)
+			return;
+		int s = scale;
+		int tileSize = TILE_SIZE << s;
+		int beginX = viewBeginX();
+		int beginZ = viewBeginZ();
+		int firstX = Math.floorDiv(beginX, tileSize);
+		int firstZ = Math.floorDiv(beginZ, tileSize);
+		int lastX = Math.floorDiv(beginX + (getWidth() << s) - 1, tileSize);
+		int lastZ = Math.floorDiv(beginZ + (getHeight() << s) - 1, tileSize);
+		for (int tz = firstZ; tz <= lastZ; ++tz) {
+			for (int tx = firstX; tx <= lastX; ++tx) {
+				// Screen position of the tile
+				int x = (int) (((long) tx * tileSize - beginX) >> s);
+				int y = (int) (((long) tz * tileSize - beginZ) >> s);
+				TileKey key = new TileKey(s, tx, tz);
+				BufferedImage tile = cache.get(key);
+				if (tile != null) {
+					g.drawImage(tile, x, y, null);
+					continue;
+				}
+				request(key);
+				// Until it is drawn, show the part of the coarser tile
+				// that covers it if there is one.
+				if (s < MAX_SCALE) {
+					BufferedImage parent = cache.get(new TileKey(s + 1,
+							Math.floorDiv(tx, 2), Math.floorDiv(tz, 2)));
+					if (parent != null) {
+						int half = TILE_SIZE / 2;
+						int sx = Math.floorMod(tx, 2) * half;
+						int sz = Math.floorMod(tz, 2) * half;
+						g.drawImage(parent, x, y, x + TILE_SIZE, y
+								+ TILE_SIZE, sx, sz, sx + half, sz + half,
+								null);
+					}
+				}
+			}
+		}
+	}
+
+	// Starts drawing a tile in the background unless it is already started.
+	private void request(final TileKey key) {
+		if (!pending.add(key))
+			return;
+		final MapCollection tileMaps = maps;
+		final int tileGeneration = generation;
+		renderers.execute(new Runnable() {
+			public void run() {
+				final BufferedImage tile = isVisible(key) ? render(tileMaps,
+						key) : null;
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						if (tileGeneration != generation)
+							return;
+						pending.remove(key);
+						if (tile != null) {
+							cache.put(key, tile);
+							repaint();
+						}
+					}
+				});
+			}
+		});
+	}
+
+	// Draws the maps that cover a tile onto it, in the same order as when
+	// they are combined.
+	private static BufferedImage render(MapCollection maps, TileKey key) {
+		int tileSize = TILE_SIZE << key.scale;
+		int beginX = key.x * tileSize;
+		int beginZ = key.z * tileSize;
+		Map tileMap = maps.combineArea(beginX, beginZ, beginX + tileSize,
+				beginZ + tileSize, key.scale);
+		if (tileMap == null) {
+			tileMap = new Map(beginX, beginZ, beginX + tileSize, beginZ
+					+ tileSize, key.scale);
+		}
+		byte[] indices = new byte[TILE_SIZE * TILE_SIZE];
+		tileMap.getCanvas().copyTo(indices);
+		return Map.createIndexedImage(indices, TILE_SIZE, TILE_SIZE);
+	}
+
+}
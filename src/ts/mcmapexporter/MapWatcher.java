@@ -0,0 +1,120 @@
+package ts.mcmapexporter;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Watches a map directory for map files being created, changed or deleted,
+// and tells a listener which files changed so it only has to read those
+// again.
+//
+// The game writes a map in several steps, so the changes are collected until
+// the directory has been quiet for a while. If the file system drops events
+// the listener is told to load everything again.
+class MapWatcher {
+
+	// Time without new changes before they are handled
+	private static final long QUIET_MILLIS = 2000;
+
+	interface Listener {
+		// Loads all maps, called first and whenever changes were lost.
+		void loadAll() throws IOException;
+
+		// Called with the files that were created, changed or deleted.
+		void update(List<File> files) throws IOException;
+	}
+
+	private Path directory;
+	private Listener listener;
+
+	public MapWatcher(Path directory, Listener listener) {
+		this.directory = directory;
+		this.listener = listener;
+	}
+
+	/**
+	 * Lets the listener load the maps and then tells it about every change.
+	 * Returns when the directory can no longer be watched. Only an error in
+	 * the first loadAll is thrown, later errors are printed and the
+	 * directory is still watched.
+	 */
+	public void run() throws IOException, InterruptedException {
+		try (WatchService watcher = directory.getFileSystem()
+				.newWatchService()) {
+			// Registered before the first scan so no change is missed
+			WatchKey key = directory.register(watcher, ENTRY_CREATE,
+					ENTRY_MODIFY, ENTRY_DELETE);
+			listener.loadAll();
+			System.out.println("Watching " + directory + " for changes.");
+			while (true) {
+				key = watcher.take();
+				LinkedHashSet<String> names = new LinkedHashSet<String>();
+				boolean overflow = false;
+				boolean valid;
+				do {
+					overflow |= collect(key, names);
+					valid = key.reset();
+				} while (valid
+						&& (key = watcher.poll(QUIET_MILLIS,
+								TimeUnit.MILLISECONDS)) != null);
+				if (!valid) {
+					System.out.println("The directory can no longer be"
+							+ " watched: " + directory);
+					return;
+				}
+				try {
+					if (overflow) {
+						System.out.println("Too many changes, loading all"
+								+ " maps.");
+						listener.loadAll();
+					} else if (!names.isEmpty()) {
+						// The same way File.listFiles names them, so they
+						// equal the files of the maps in a collection.
+						File dir = directory.toFile();
+						List<File> files = new ArrayList<File>();
+						for (String name : names) {
+							files.add(new File(dir, name));
+						}
+						listener.update(files);
+					}
+				} catch (IOException e) {
+					// Files are often read while the game writes them, the
+					// next change to them is handled again.
+					System.out.println("Failed handling the changes, still"
+							+ " watching.");
+					System.out.println("Exception message: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	// Adds the names of the map files in the events of the key to names.
+	// @return true if events were lost.
+	private static boolean collect(WatchKey key, LinkedHashSet<String> names) {
+		boolean overflow = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				overflow = true;
+				continue;
+			}
+			String name = event.context().toString();
+			if (MapCollection.couldBeAMap(new File(name))) {
+				names.add(name);
+			}
+		}
+		return overflow;
+	}
+
+}
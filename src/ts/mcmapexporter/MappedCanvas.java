@@ -0,0 +1,252 @@
+package ts.mcmapexporter;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// A canvas that keeps its pixels in a memory mapped scratch file instead of
+// on the heap, for combined maps that are too large for the heap. The pixels
+// are stored row by row and addressed by a long offset, the file is mapped in
+// segments since one mapping can not be larger than 2 GB. The operating
+// system writes pixels out to the file and reads them back as needed, so the
+// map can be larger than the memory of the machine.
+//
+// The file is created with its full size without writing it, which on most
+// file systems only uses disk space where pixels are written. The rest reads
+// as zeros, the unexplored color.
+//
+// The mapping only goes away when the buffers are garbage collected, which
+// with a small heap may be much later, so release should be called when the
+// canvas is no longer needed. It unmaps the file and frees its disk space.
+class MappedCanvas implements Canvas {
+
+	private static final int SEGMENT_SHIFT = 30;
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+	private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	// Copied by clearRect, never changed
+	private static final byte[] ZEROS = new byte[4096];
+
+	private int width;
+	private int height;
+	private MappedByteBuffer[] segments;
+	// The scratch file if it could not be deleted while mapped, else null
+	private Path file;
+
+	/**
+	 * @param directory
+	 *            Where the scratch file is created. It is deleted right away
+	 *            where the system allows it, the mapping stays valid, and
+	 *            otherwise by release.
+	 */
+	public MappedCanvas(int width, int height, Path directory)
+			throws IOException {
+		this.width = width;
+		this.height = height;
+		long size = (long) width * height;
+		Path file = Files.createTempFile(directory, "canvas", ".tmp");
+		try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+			raf.setLength(size);
+			FileChannel channel = raf.getChannel();
+			int nSegments = (int) ((size + SEGMENT_MASK) >> SEGMENT_SHIFT);
+			segments = new MappedByteBuffer[nSegments];
+			for (int i = 0; i < segments.length; ++i) {
+				long start = (long) i << SEGMENT_SHIFT;
+				segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+						start, Math.min(SEGMENT_SIZE, size - start));
+			}
+		} finally {
+			try {
+				Files.delete(file);
+			} catch (IOException e) {
+				// Windows does not delete a mapped file
+				this.file = file;
+				file.toFile().deleteOnExit();
+			}
+		}
+	}
+
+	/**
+	 * Unmaps the scratch file and deletes it if that was not possible before.
+	 * The canvas can not be used afterwards.
+	 */
+	public void release() {
+		if (segments == null)
+			return;
+		for (MappedByteBuffer segment : segments) {
+			unmap(segment);
+		}
+		segments = null;
+		if (file != null) {
+			try {
+				Files.deleteIfExists(file);
+				file = null;
+			} catch (IOException e) {
+				System.out.println("Failed deleting scratch file: " + file);
+			}
+		}
+	}
+
+	// There is no public way to unmap a buffer. If none of the internal ones
+	// work, the buffer is unmapped when it is garbage collected.
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			// Java 9 and later
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner",
+					ByteBuffer.class);
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			invokeCleaner.invoke(theUnsafe.get(null), buffer);
+		} catch (NoSuchMethodException e) {
+			// Java 8
+			try {
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			} catch (Exception e2) {
+			}
+		} catch (Exception e) {
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	private long offset(int x, int z) {
+		return (long) z * width + x;
+	}
+
+	public byte get(int x, int z) {
+		long i = offset(x, z);
+		return segments[(int) (i >> SEGMENT_SHIFT)]
+				.get((int) (i & SEGMENT_MASK));
+	}
+
+	public void set(int x, int z, byte pixel) {
+		long i = offset(x, z);
+		segments[(int) (i >> SEGMENT_SHIFT)].put((int) (i & SEGMENT_MASK),
+				pixel);
+	}
+
+	// Gives a buffer positioned at pixel i, with its limit at the end of the
+	// segment. The buffer is a view of its own so threads working on
+	// different rows do not share a position.
+	private ByteBuffer bufferAt(long i) {
+		ByteBuffer buffer = segments[(int) (i >> SEGMENT_SHIFT)].duplicate();
+		// Called on Buffer, ByteBuffer.position(int) does not exist in Java 8
+		((java.nio.Buffer) buffer).position((int) (i & SEGMENT_MASK));
+		return buffer;
+	}
+
+	public void readRow(int x, int z, byte[] dst, int offset, int len) {
+		long i = offset(x, z);
+		while (len > 0) {
+			ByteBuffer buffer = bufferAt(i);
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(dst, offset, n);
+			i += n;
+			offset += n;
+			len -= n;
+		}
+	}
+
+	public void writeRow(int x, int z, byte[] src, int offset, int len) {
+		long i = offset(x, z);
+		while (len > 0) {
+			ByteBuffer buffer = bufferAt(i);
+			int n = Math.min(len, buffer.remaining());
+			buffer.put(src, offset, n);
+			i += n;
+			offset += n;
+			len -= n;
+		}
+	}
+
+	public void writeRowExplored(int x, int z, byte[] src, int offset,
+			int len) {
+		long i = offset(x, z);
+		for (int j = offset; j < offset + len; ++j, ++i) {
+			if (src[j] != 0) {
+				segments[(int) (i >> SEGMENT_SHIFT)].put(
+						(int) (i & SEGMENT_MASK), src[j]);
+			}
+		}
+	}
+
+	public void clearRect(int beginX, int beginZ, int endX, int endZ) {
+		for (int z = beginZ; z < endZ; ++z) {
+			for (int x = beginX; x < endX; x += ZEROS.length) {
+				writeRow(x, z, ZEROS, 0, Math.min(ZEROS.length, endX - x));
+			}
+		}
+	}
+
+	public void copyTo(byte[] dst) {
+		for (int z = 0; z < height; ++z) {
+			readRow(0, z, dst, z * width, width);
+		}
+	}
+
+	// Uses the format of TiledCanvas, so a combined map saved by one kind of
+	// canvas can be read by the other.
+	public void write(DataOutputStream out) throws IOException {
+		int tileSize = TiledCanvas.TILE_SIZE;
+		byte[] tile = new byte[tileSize * tileSize];
+		for (int z = 0; z < height; z += tileSize) {
+			for (int x = 0; x < width; x += tileSize) {
+				int n = Math.min(tileSize, width - x);
+				int rows = Math.min(tileSize, height - z);
+				java.util.Arrays.fill(tile, (byte) 0);
+				boolean explored = false;
+				for (int row = 0; row < rows; ++row) {
+					readRow(x, z + row, tile, row * tileSize, n);
+				}
+				for (byte pixel : tile) {
+					if (pixel != 0) {
+						explored = true;
+						break;
+					}
+				}
+				out.writeBoolean(explored);
+				if (explored) {
+					out.write(tile);
+				}
+			}
+		}
+	}
+
+	public void read(DataInputStream in) throws IOException {
+		int tileSize = TiledCanvas.TILE_SIZE;
+		byte[] tile = new byte[tileSize * tileSize];
+		for (int z = 0; z < height; z += tileSize) {
+			for (int x = 0; x < width; x += tileSize) {
+				int n = Math.min(tileSize, width - x);
+				int rows = Math.min(tileSize, height - z);
+				if (in.readBoolean()) {
+					in.readFully(tile);
+					for (int row = 0; row < rows; ++row) {
+						writeRow(x, z + row, tile, row * tileSize, n);
+					}
+				} else {
+					clearRect(x, z, x + n, z + rows);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,186 @@
+package ts.mcmapexporter;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Streaming reader for the NBT format used by minecraft to store map items.
+// Walks the tag headers one by one so the caller can pick out the fields it
+// needs and skip everything else without reading it into memory.
+class NbtReader {
+
+	public static final int TAG_END = 0;
+	public static final int TAG_BYTE = 1;
+	public static final int TAG_SHORT = 2;
+	public static final int TAG_INT = 3;
+	public static final int TAG_LONG = 4;
+	public static final int TAG_FLOAT = 5;
+	public static final int TAG_DOUBLE = 6;
+	public static final int TAG_BYTE_ARRAY = 7;
+	public static final int TAG_STRING = 8;
+	public static final int TAG_LIST = 9;
+	public static final int TAG_COMPOUND = 10;
+	public static final int TAG_INT_ARRAY = 11;
+	public static final int TAG_LONG_ARRAY = 12;
+
+	private DataInputStream in;
+
+	// The name of the last tag read, stored as raw (modified UTF-8) bytes so
+	// that names can be compared without creating strings.
+	private byte[] nameBuffer = new byte[64];
+	private int nameLength = 0;
+
+	public NbtReader(InputStream in) {
+		this.in = new DataInputStream(in);
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Reads the type of the next tag. If the type is not TAG_END it must be
+	 * followed by a call to readName.
+	 *
+	 * @return The tag type, or -1 if the end of the stream was reached.
+	 */
+	public int readTagType() throws IOException {
+		int type = in.read();
+		if (type > TAG_LONG_ARRAY) {
+			throw new IOException("Unknown NBT tag type: " + type);
+		}
+		return type;
+	}
+
+	public void readName() throws IOException {
+		nameLength = in.readUnsignedShort();
+		if (nameLength > nameBuffer.length) {
+			nameBuffer = new byte[nameLength];
+		}
+		in.readFully(nameBuffer, 0, nameLength);
+	}
+
+	public boolean nameEquals(byte[] name) {
+		if (name.length != nameLength)
+			return false;
+		for (int i = 0; i < nameLength; ++i) {
+			if (nameBuffer[i] != name[i])
+				return false;
+		}
+		return true;
+	}
+
+	public static boolean isInteger(int type) {
+		return (type == TAG_BYTE) || (type == TAG_SHORT) || (type == TAG_INT)
+				|| (type == TAG_LONG);
+	}
+
+	// Reads the payload of an integer tag of any width.
+	public long readInteger(int type) throws IOException {
+		switch (type) {
+		case TAG_BYTE:
+			return in.readByte();
+		case TAG_SHORT:
+			return in.readShort();
+		case TAG_INT:
+			return in.readInt();
+		case TAG_LONG:
+			return in.readLong();
+		default:
+			throw new IOException("Not an integer NBT tag: " + type);
+		}
+	}
+
+	public String readString() throws IOException {
+		return in.readUTF();
+	}
+
+	// Reads the length of a TAG_BYTE_ARRAY payload, must be followed by a call
+	// to readBytes.
+	public int readArrayLength() throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			throw new IOException("Negative NBT array length: " + length);
+		}
+		return length;
+	}
+
+	public void readBytes(byte[] array) throws IOException {
+		in.readFully(array);
+	}
+
+	public void skipPayload(int type) throws IOException {
+		switch (type) {
+		case TAG_END:
+			break;
+		case TAG_BYTE:
+			skipBytes(1);
+			break;
+		case TAG_SHORT:
+			skipBytes(2);
+			break;
+		case TAG_INT:
+		case TAG_FLOAT:
+			skipBytes(4);
+			break;
+		case TAG_LONG:
+		case TAG_DOUBLE:
+			skipBytes(8);
+			break;
+		case TAG_BYTE_ARRAY:
+			skipBytes(readArrayLength());
+			break;
+		case TAG_STRING:
+			skipBytes(in.readUnsignedShort());
+			break;
+		case TAG_LIST: {
+			int elementType = readTagType();
+			int length = readArrayLength();
+			for (int i = 0; i < length; ++i) {
+				skipPayload(elementType);
+			}
+			break;
+		}
+		case TAG_COMPOUND:
+			skipCompound();
+			break;
+		case TAG_INT_ARRAY:
+			skipBytes(4L * readArrayLength());
+			break;
+		case TAG_LONG_ARRAY:
+			skipBytes(8L * readArrayLength());
+			break;
+		default:
+			throw new IOException("Unknown NBT tag type: " + type);
+		}
+	}
+
+	// Skips the rest of the compound that is currently being read, including
+	// its TAG_END.
+	public void skipCompound() throws IOException {
+		while (true) {
+			int type = readTagType();
+			if (type == -1)
+				throw new EOFException();
+			if (type == TAG_END)
+				return;
+			readName();
+			skipPayload(type);
+		}
+	}
+
+	private void skipBytes(long n) throws IOException {
+		while (n > 0) {
+			long skipped = in.skip(n);
+			if (skipped <= 0) {
+				// skip is allowed to give up early, fall back to reading
+				if (in.read() == -1)
+					throw new EOFException();
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+
+}
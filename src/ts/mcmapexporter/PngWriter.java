@@ -0,0 +1,160 @@
+package ts.mcmapexporter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CancellationException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+// Writes a canvas as an 8 bit palette PNG. The colorIds are the indices into
+// the palette, so no conversion is needed. The rows are read from the canvas
+// and compressed one at a time, so only a row and the output buffers are in
+// memory no matter how large the image is.
+class PngWriter {
+
+	private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10,
+			26, 10 };
+
+	// Largest amount of compressed data stored in one IDAT chunk
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private static final int COLOR_TYPE_PALETTE = 3;
+
+	public static void write(Canvas canvas, int[] palette, File file)
+			throws IOException {
+		write(canvas, palette, file, ExportProgress.NONE);
+	}
+
+	// Reports each row to progress. If the export is cancelled the partly
+	// written file is deleted.
+	public static void write(Canvas canvas, int[] palette, File file,
+			ExportProgress progress) throws IOException {
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(
+				file), CHUNK_SIZE)) {
+			write(canvas, palette, out, progress);
+		} catch (CancellationException e) {
+			file.delete();
+			throw e;
+		}
+	}
+
+	// Writes the image to out, out is not closed.
+	public static void write(Canvas canvas, int[] palette, OutputStream out)
+			throws IOException {
+		write(canvas, palette, out, ExportProgress.NONE);
+	}
+
+	public static void write(Canvas canvas, int[] palette, OutputStream out,
+			ExportProgress progress) throws IOException {
+		int width = canvas.getWidth();
+		int height = canvas.getHeight();
+		DataOutputStream dataOut = new DataOutputStream(out);
+		dataOut.write(SIGNATURE);
+
+		byte[] ihdr = new byte[13];
+		writeInt(ihdr, 0, width);
+		writeInt(ihdr, 4, height);
+		ihdr[8] = 8; // bit depth
+		ihdr[9] = COLOR_TYPE_PALETTE;
+		ihdr[10] = 0; // compression method
+		ihdr[11] = 0; // filter method
+		ihdr[12] = 0; // no interlace
+		writeChunk(dataOut, "IHDR", ihdr, 0, ihdr.length);
+
+		byte[] plte = new byte[palette.length * 3];
+		for (int i = 0; i < palette.length; ++i) {
+			plte[3 * i] = (byte) (palette[i] >> 16);
+			plte[3 * i + 1] = (byte) (palette[i] >> 8);
+			plte[3 * i + 2] = (byte) palette[i];
+		}
+		writeChunk(dataOut, "PLTE", plte, 0, plte.length);
+
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		IdatOutputStream idat = new IdatOutputStream(dataOut);
+		DeflaterOutputStream deflaterOut = new DeflaterOutputStream(idat,
+				deflater, CHUNK_SIZE);
+		try {
+			// Each row starts with its filter type, 0 means no filter which
+			// is what works best for palette images.
+			byte[] row = new byte[width + 1];
+			for (int z = 0; z < height; ++z) {
+				progress.checkCancelled();
+				canvas.readRow(0, z, row, 1, width);
+				deflaterOut.write(row);
+				progress.rowsEncoded(z + 1, height);
+			}
+			deflaterOut.finish();
+			idat.flushChunk();
+		} finally {
+			deflater.end();
+		}
+
+		writeChunk(dataOut, "IEND", new byte[0], 0, 0);
+		dataOut.flush();
+	}
+
+	private static void writeInt(byte[] array, int i, int value) {
+		array[i] = (byte) (value >>> 24);
+		array[i + 1] = (byte) (value >>> 16);
+		array[i + 2] = (byte) (value >>> 8);
+		array[i + 3] = (byte) value;
+	}
+
+	private static void writeChunk(DataOutputStream out, String type,
+			byte[] data, int offset, int len) throws IOException {
+		byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data, offset, len);
+		out.writeInt(len);
+		out.write(typeBytes);
+		out.write(data, offset, len);
+		out.writeInt((int) crc.getValue());
+	}
+
+	// Collects compressed data and writes it as IDAT chunks of CHUNK_SIZE
+	// bytes.
+	private static class IdatOutputStream extends OutputStream {
+		private DataOutputStream out;
+		private byte[] buffer = new byte[CHUNK_SIZE];
+		private int length = 0;
+
+		public IdatOutputStream(DataOutputStream out) {
+			this.out = out;
+		}
+
+		public void write(int b) throws IOException {
+			if (length == buffer.length) {
+				flushChunk();
+			}
+			buffer[length++] = (byte) b;
+		}
+
+		public void write(byte[] b, int offset, int len) throws IOException {
+			while (len > 0) {
+				if (length == buffer.length) {
+					flushChunk();
+				}
+				int n = Math.min(len, buffer.length - length);
+				System.arraycopy(b, offset, buffer, length, n);
+				length += n;
+				offset += n;
+				len -= n;
+			}
+		}
+
+		public void flushChunk() throws IOException {
+			if (length > 0) {
+				writeChunk(out, "IDAT", buffer, 0, length);
+				length = 0;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,27 @@
+package ts.mcmapexporter;
+
+// Identifies a square tile of the world at a scale. The tile covers the
+// blocks from x * size to (x + 1) * size - 1 where size is the number of
+// pixels along a side of the tile shifted left by scale, the same for z.
+class TileKey {
+	public final int scale;
+	public final int x;
+	public final int z;
+
+	public TileKey(int scale, int x, int z) {
+		this.scale = scale;
+		this.x = x;
+		this.z = z;
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof TileKey))
+			return false;
+		TileKey k = (TileKey) o;
+		return scale == k.scale && x == k.x && z == k.z;
+	}
+
+	public int hashCode() {
+		return (scale * 31 + x) * 31 + z;
+	}
+}
@@ -0,0 +1,289 @@
+package ts.mcmapexporter;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+
+// Writes a combined map as a pyramid of PNG tiles for web map viewers, stored
+// as <directory>/<zoom>/<x>/<y>.png. The tiles are numbered the same way as
+// those of TileServer: zoom MAX_ZOOM has one block per pixel and every zoom
+// below it has twice as many blocks per pixel, tile 0/0 starts at block 0, 0
+// at every zoom so x and y may be negative. The highest zoom level written is
+// the one of the scale of the map, with one map pixel per tile pixel, every
+// lower level is made by shrinking four tiles of the level above into one.
+// Tiles where everything is unexplored are not written.
+//
+// Because the tiles are fixed in the world, a tile of a later export of a
+// larger area has the same path as before. Tiles that an earlier export left
+// in the directory and that were not written again are deleted when the
+// pyramid is done, other files there are left alone.
+class TilePyramid {
+
+	public static final int TILE_SIZE = 256;
+	public static final int MAX_ZOOM = 6;
+
+	// The tiles of one zoom level that cover the map
+	private static class Level {
+		public int beginX;
+		public int beginY;
+		public int tilesX;
+		public int tilesY;
+		// Which tiles cover an allocated tile of a TiledCanvas, so unexplored
+		// parts of the map are skipped without looking at them. Bit
+		// (x - beginX) + (y - beginY) * tilesX, null for other canvases.
+		public BitSet allocated;
+
+		public boolean contains(int x, int y) {
+			return x >= beginX && x < beginX + tilesX && y >= beginY
+					&& y < beginY + tilesY;
+		}
+
+		public int index(int x, int y) {
+			return (x - beginX) + (y - beginY) * tilesX;
+		}
+	}
+
+	private Canvas canvas;
+	private Path directory;
+	private int maxZoom;
+	// The pixel of the highest zoom level, counted from block 0, 0, where
+	// the canvas begins.
+	private int offsetX;
+	private int offsetY;
+	private Level[] levels;
+	private int nTilesWritten = 0;
+	private Downsampler downsampler = new Downsampler(1);
+	private ExportProgress progress;
+	private HashSet<Path> written = new HashSet<Path>();
+
+	public TilePyramid(Map map, Path directory) {
+		this(map, directory, ExportProgress.NONE);
+	}
+
+	// The pyramid stops being written if progress is cancelled.
+	// @param map
+	// A map with a scale no larger than MAX_ZOOM.
+	public TilePyramid(Map map, Path directory, ExportProgress progress) {
+		assert (map.getScale() <= MAX_ZOOM);
+		this.canvas = map.getCanvas();
+		this.directory = directory;
+		this.progress = progress;
+		maxZoom = MAX_ZOOM - map.getScale();
+		offsetX = Math.floorDiv(map.getBeginX(), 1 << map.getScale());
+		offsetY = Math.floorDiv(map.getBeginZ(), 1 << map.getScale());
+		levels = new Level[maxZoom + 1];
+		for (int zoom = 0; zoom <= maxZoom; ++zoom) {
+			long tileSize = (long) TILE_SIZE << (maxZoom - zoom);
+			Level level = new Level();
+			level.beginX = (int) Math.floorDiv(offsetX, tileSize);
+			level.beginY = (int) Math.floorDiv(offsetY, tileSize);
+			level.tilesX = (int) Math.floorDiv(
+					offsetX + (long) canvas.getWidth() - 1, tileSize)
+					- level.beginX + 1;
+			level.tilesY = (int) Math.floorDiv(
+					offsetY + (long) canvas.getHeight() - 1, tileSize)
+					- level.beginY + 1;
+			levels[zoom] = level;
+		}
+	}
+
+	public int getMaxZoom() {
+		return maxZoom;
+	}
+
+	public int getNTilesWritten() {
+		return nTilesWritten;
+	}
+
+	public void write() throws IOException {
+		if (canvas.getWidth() > 0 && canvas.getHeight() > 0) {
+			findAllocated();
+			Level top = levels[0];
+			for (int y = top.beginY; y < top.beginY + top.tilesY; ++y) {
+				for (int x = top.beginX; x < top.beginX + top.tilesX; ++x) {
+					buildTile(0, x, y);
+				}
+			}
+		}
+		removeOldTiles();
+	}
+
+	private void findAllocated() {
+		if (!(canvas instanceof TiledCanvas))
+			return;
+		TiledCanvas tiled = (TiledCanvas) canvas;
+		int size = TiledCanvas.TILE_SIZE;
+		Level top = levels[maxZoom];
+		top.allocated = new BitSet();
+		for (int z = 0; z < tiled.getTilesZ(); ++z) {
+			for (int x = 0; x < tiled.getTilesX(); ++x) {
+				if (tiled.getTile(x, z) == null)
+					continue;
+				// The pyramid tiles the canvas tile overlaps
+				int beginX = Math.floorDiv(offsetX + x * size, TILE_SIZE);
+				int beginY = Math.floorDiv(offsetY + z * size, TILE_SIZE);
+				int endX = Math.floorDiv(offsetX + x * size + size - 1,
+						TILE_SIZE);
+				int endY = Math.floorDiv(offsetY + z * size + size - 1,
+						TILE_SIZE);
+				for (int tileY = beginY; tileY <= endY; ++tileY) {
+					for (int tileX = beginX; tileX <= endX; ++tileX) {
+						if (top.contains(tileX, tileY)) {
+							top.allocated.set(top.index(tileX, tileY));
+						}
+					}
+				}
+			}
+		}
+		// A tile covers an allocated tile if one of its four does
+		for (int zoom = maxZoom - 1; zoom >= 0; --zoom) {
+			Level above = levels[zoom + 1];
+			BitSet set = above.allocated;
+			Level level = levels[zoom];
+			level.allocated = new BitSet();
+			for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+				int x = above.beginX + i % above.tilesX;
+				int y = above.beginY + i / above.tilesX;
+				level.allocated.set(level.index(Math.floorDiv(x, 2),
+						Math.floorDiv(y, 2)));
+			}
+		}
+	}
+
+	// Creates the tile and the tiles below it depth first, so only one tile
+	// per zoom level and its siblings are in memory at the same time.
+	// @return The pixels of the tile, or null if it is all unexplored.
+	private byte[] buildTile(int zoom, int x, int y) throws IOException {
+		progress.checkCancelled();
+		Level level = levels[zoom];
+		if (!level.contains(x, y))
+			return null;
+		if (level.allocated != null
+				&& !level.allocated.get(level.index(x, y)))
+			return null;
+		byte[] tile;
+		if (zoom == maxZoom) {
+			tile = readTile(x, y);
+		} else {
+			tile = null;
+			for (int i = 0; i < 4; ++i) {
+				int subX = i & 1;
+				int subY = i >> 1;
+				byte[] subTile = buildTile(zoom + 1, 2 * x + subX, 2 * y + subY);
+				if (subTile != null) {
+					if (tile == null) {
+						tile = new byte[TILE_SIZE * TILE_SIZE];
+					}
+					shrinkInto(subTile, tile, subX * TILE_SIZE / 2, subY
+							* TILE_SIZE / 2);
+				}
+			}
+		}
+		if (tile != null && isAllUnexplored(tile)) {
+			tile = null;
+		}
+		if (tile != null) {
+			Path file = directory.resolve(Integer.toString(zoom))
+					.resolve(Integer.toString(x)).resolve(y + ".png");
+			Files.createDirectories(file.getParent());
+			long start = System.nanoTime();
+			Object event = ExportMetrics.beginEncode();
+			PngWriter.write(new ArrayCanvas(TILE_SIZE, TILE_SIZE, tile),
+					Map.getPalette(), file.toFile());
+			ExportMetrics.encoded(event, start, file.toFile());
+			++nTilesWritten;
+			written.add(file);
+		}
+		return tile;
+	}
+
+	// Deletes the <zoom>/<x>/<y>.png files that were not written by this
+	// export, and the directories that are empty afterwards.
+	private void removeOldTiles() throws IOException {
+		for (Path zoomDirectory : listNumbered(directory, "")) {
+			for (Path xDirectory : listNumbered(zoomDirectory, "")) {
+				for (Path file : listNumbered(xDirectory, ".png")) {
+					if (!written.contains(file)) {
+						Files.delete(file);
+					}
+				}
+				deleteIfEmpty(xDirectory);
+			}
+			deleteIfEmpty(zoomDirectory);
+		}
+	}
+
+	// @return The entries of a directory named <number><suffix>, those that
+	// are directories if suffix is empty and files otherwise.
+	private static List<Path> listNumbered(Path dir, String suffix)
+			throws IOException {
+		List<Path> found = new ArrayList<Path>();
+		if (!Files.isDirectory(dir))
+			return found;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path entry : stream) {
+				String name = entry.getFileName().toString();
+				if (!name.endsWith(suffix)
+						|| Files.isDirectory(entry) != suffix.isEmpty())
+					continue;
+				try {
+					Integer.parseInt(name.substring(0, name.length()
+							- suffix.length()));
+					found.add(entry);
+				} catch (NumberFormatException e) {
+				}
+			}
+		}
+		return found;
+	}
+
+	private static void deleteIfEmpty(Path dir) throws IOException {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			if (stream.iterator().hasNext())
+				return;
+		}
+		Files.delete(dir);
+	}
+
+	// @return The pixels of a tile at the highest zoom level, the parts
+	// outside the canvas are unexplored.
+	private byte[] readTile(int x, int y) {
+		long beginX = (long) x * TILE_SIZE - offsetX;
+		long beginY = (long) y * TILE_SIZE - offsetY;
+		int first = (int) Math.max(0, -beginX);
+		int n = (int) Math.min(TILE_SIZE, canvas.getWidth() - beginX) - first;
+		int firstRow = (int) Math.max(0, -beginY);
+		int rows = (int) Math.min(TILE_SIZE, canvas.getHeight() - beginY);
+		byte[] tile = new byte[TILE_SIZE * TILE_SIZE];
+		if (n <= 0)
+			return tile;
+		for (int row = firstRow; row < rows; ++row) {
+			canvas.readRow((int) beginX + first, (int) beginY + row, tile, row
+					* TILE_SIZE + first, n);
+		}
+		return tile;
+	}
+
+	// Shrinks a tile to half its size and stores it in a quarter of dst, each
+	// 2x2 block is combined the same way as drawToMap combines pixels.
+	private void shrinkInto(byte[] src, byte[] dst, int dstX, int dstZ) {
+		for (int z = 0; z < TILE_SIZE / 2; ++z) {
+			downsampler.downsampleRow(src, 2 * z * TILE_SIZE, TILE_SIZE, dst,
+					dstX + (dstZ + z) * TILE_SIZE, TILE_SIZE / 2);
+		}
+	}
+
+	private static boolean isAllUnexplored(byte[] tile) {
+		for (int i = 0; i < tile.length; ++i) {
+			if (tile[i] != 0)
+				return false;
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,300 @@
+package ts.mcmapexporter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// Serves the maps of a dimension as PNG tiles over HTTP, at
+// /<zoom>/<x>/<y>.png. Zoom 0 has the most blocks per pixel and zoom
+// MAX_ZOOM has one block per pixel, tile 0/0 starts at block 0, 0 at every
+// zoom so x and y may be negative.
+//
+// A tile is drawn from the maps covering it the first time it is asked for,
+// the same way MapViewer draws its tiles, and the PNG is kept in a cache
+// where the least recently asked for are dropped first. Each tile has an
+// ETag made from its content, so clients that already have it get a 304.
+// Tiles that no map covers are answered with 404.
+//
+// As a MapWatcher listener the server follows changes to the maps, and only
+// the cached tiles covered by changed maps are dropped.
+class TileServer implements MapWatcher.Listener, HttpHandler {
+
+	// The same tiles as those written by TilePyramid
+	public static final int TILE_SIZE = TilePyramid.TILE_SIZE;
+	public static final int MAX_ZOOM = TilePyramid.MAX_ZOOM;
+
+	private static class Tile {
+		public final byte[] png;
+		public final String etag;
+
+		public Tile(byte[] png) {
+			this.png = png;
+			CRC32 crc = new CRC32();
+			crc.update(png, 0, png.length);
+			etag = "\"" + Long.toHexString(crc.getValue()) + "\"";
+		}
+	}
+
+	private Path directory;
+	private int dimension;
+	private int threads;
+	private long maxCacheBytes;
+
+	// Tiles are drawn while holding the read lock, the collection is only
+	// changed while holding the write lock. A tile is cached before the read
+	// lock is released, so a tile drawn from old maps is always dropped by
+	// the change that follows.
+	private ReadWriteLock lock = new ReentrantReadWriteLock();
+	private MapCollection maps;
+	// Access order makes it drop the tile that was least recently asked for.
+	// Only used while synchronized on it.
+	private LinkedHashMap<TileKey, Tile> cache = new LinkedHashMap<TileKey, Tile>(
+			16, 0.75f, true);
+	private long cacheBytes = 0;
+
+	private HttpServer server;
+	private ExecutorService executor;
+
+	/**
+	 * @param threads
+	 *            Number of threads that load the maps and answer requests.
+	 * @param maxCacheBytes
+	 *            The cached PNGs are kept below this size in total.
+	 */
+	public TileServer(Path directory, int dimension, int threads,
+			long maxCacheBytes) {
+		this.directory = directory;
+		this.dimension = dimension;
+		this.threads = threads;
+		this.maxCacheBytes = maxCacheBytes;
+		Map.setBaseColors();
+	}
+
+	/**
+	 * Starts answering requests on a port, 0 picks a free port. Until the
+	 * maps are loaded the answer is 503.
+	 */
+	public void start(int port) throws IOException {
+		// Without it every answer on a kept alive connection waits for the
+		// delayed ACK of the one before, which limits a client to about 25
+		// tiles per second. Read once, when the first server is created.
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/", this);
+		executor = Executors.newFixedThreadPool(threads);
+		server.setExecutor(executor);
+		server.start();
+		System.out.println("Serving tiles on port " + getPort());
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdown();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public void loadAll() throws IOException {
+		MapCollection loaded = new MapCollection(directory, dimension,
+				threads);
+		loaded.getGrid();
+		lock.writeLock().lock();
+		try {
+			maps = loaded;
+			synchronized (cache) {
+				cache.clear();
+				cacheBytes = 0;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		System.out.println("Number of maps loaded: " + loaded.getNMaps());
+	}
+
+	public void update(List<File> files) throws IOException {
+		int nDropped = 0;
+		List<MapIndex.Entry> changes;
+		lock.writeLock().lock();
+		try {
+			changes = maps.reload(files);
+			maps.getGrid();
+			for (MapIndex.Entry entry : changes) {
+				nDropped += dropTiles(entry);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		System.out.println(files.size() + " files changed, "
+				+ changes.size() + " maps added or removed, " + nDropped
+				+ " tiles dropped.");
+	}
+
+	// Drops the cached tiles covered by a map.
+	// @return The number of tiles dropped.
+	private int dropTiles(MapIndex.Entry entry) {
+		if (!entry.valid || (entry.dimension != dimension))
+			return 0;
+		Map changed = new Map(null, entry.scale, entry.width, entry.height,
+				entry.centerX, entry.centerZ, entry.lastModified);
+		int nDropped = 0;
+		synchronized (cache) {
+			Iterator<java.util.Map.Entry<TileKey, Tile>> it = cache
+					.entrySet().iterator();
+			while (it.hasNext()) {
+				java.util.Map.Entry<TileKey, Tile> cached = it.next();
+				TileKey key = cached.getKey();
+				// Grown by one pixel of the tile, like updateCombined does,
+				// for pixels that are only partly covered.
+				long pixelSize = 1L << key.scale;
+				long tileSize = (long) TILE_SIZE << key.scale;
+				long beginX = key.x * tileSize - pixelSize;
+				long beginZ = key.z * tileSize - pixelSize;
+				long endX = beginX + tileSize + 2 * pixelSize;
+				long endZ = beginZ + tileSize + 2 * pixelSize;
+				if (beginX < changed.getEndX() && endX > changed.getBeginX()
+						&& beginZ < changed.getEndZ()
+						&& endZ > changed.getBeginZ()) {
+					cacheBytes -= cached.getValue().png.length;
+					it.remove();
+					++nDropped;
+				}
+			}
+		}
+		return nDropped;
+	}
+
+	public void handle(HttpExchange exchange) throws IOException {
+		try {
+			if (!exchange.getRequestMethod().equals("GET")) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			TileKey key = parseTile(exchange.getRequestURI().getPath());
+			if (key == null) {
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			}
+			Tile tile;
+			lock.readLock().lock();
+			try {
+				if (maps == null) {
+					exchange.sendResponseHeaders(503, -1);
+					return;
+				}
+				tile = getTile(key);
+			} finally {
+				lock.readLock().unlock();
+			}
+			if (tile == null) {
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			}
+			exchange.getResponseHeaders().set("ETag", tile.etag);
+			// Tiles change when the maps do, so clients must ask again
+			exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+			if (tile.etag.equals(exchange.getRequestHeaders().getFirst(
+					"If-None-Match"))) {
+				exchange.sendResponseHeaders(304, -1);
+				return;
+			}
+			exchange.getResponseHeaders().set("Content-Type", "image/png");
+			exchange.sendResponseHeaders(200, tile.png.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(tile.png);
+		} catch (RuntimeException e) {
+			System.out.println("Failed serving: " + exchange.getRequestURI());
+			System.out.println("Exception message: " + e.getMessage());
+			exchange.sendResponseHeaders(500, -1);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	// Reads /<zoom>/<x>/<y>.png
+	// @return null if the path is not a tile in the world.
+	private static TileKey parseTile(String path) {
+		String[] parts = path.split("/");
+		if (parts.length != 4 || !parts[0].isEmpty()
+				|| !parts[3].endsWith(".png"))
+			return null;
+		int zoom;
+		long x;
+		long z;
+		try {
+			zoom = Integer.parseInt(parts[1]);
+			x = Long.parseLong(parts[2]);
+			z = Long.parseLong(parts[3].substring(0,
+					parts[3].length() - ".png".length()));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		if (zoom < 0 || zoom > MAX_ZOOM || Math.abs(x) > Integer.MAX_VALUE
+				|| Math.abs(z) > Integer.MAX_VALUE)
+			return null;
+		int scale = MAX_ZOOM - zoom;
+		long tileSize = (long) TILE_SIZE << scale;
+		// The whole tile must have block coordinates that fit in an int
+		if (x * tileSize < Integer.MIN_VALUE
+				|| (x + 1) * tileSize > Integer.MAX_VALUE
+				|| z * tileSize < Integer.MIN_VALUE
+				|| (z + 1) * tileSize > Integer.MAX_VALUE)
+			return null;
+		return new TileKey(scale, (int) x, (int) z);
+	}
+
+	// Takes the tile from the cache, or draws it. Must hold the read lock.
+	// @return null if no map covers the tile.
+	private Tile getTile(TileKey key) throws IOException {
+		Tile tile;
+		synchronized (cache) {
+			tile = cache.get(key);
+		}
+		if (tile != null)
+			return tile;
+		// Two requests for the same tile may both draw it, the tile is the
+		// same either way.
+		int tileSize = TILE_SIZE << key.scale;
+		int beginX = key.x * tileSize;
+		int beginZ = key.z * tileSize;
+		Map tileMap = maps.combineArea(beginX, beginZ, beginX + tileSize,
+				beginZ + tileSize, key.scale);
+		if (tileMap == null)
+			return null;
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		tileMap.writePng(png);
+		tile = new Tile(png.toByteArray());
+		synchronized (cache) {
+			Tile old = cache.put(key, tile);
+			cacheBytes += tile.png.length;
+			if (old != null) {
+				cacheBytes -= old.png.length;
+			}
+			Iterator<Tile> it = cache.values().iterator();
+			while (cacheBytes > maxCacheBytes && it.hasNext()) {
+				cacheBytes -= it.next().png.length;
+				it.remove();
+			}
+		}
+		return tile;
+	}
+
+}
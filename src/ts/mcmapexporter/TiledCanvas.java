@@ -0,0 +1,211 @@
+package ts.mcmapexporter;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+// A canvas split into square tiles where a tile is only allocated when an
+// explored pixel is written to it. Used for combined maps, which often cover
+// large areas where only a few parts are explored.
+class TiledCanvas implements Canvas {
+
+	public static final int TILE_SHIFT = 8;
+	public static final int TILE_SIZE = 1 << TILE_SHIFT;
+	private static final int TILE_MASK = TILE_SIZE - 1;
+
+	private int width;
+	private int height;
+	private int tilesX;
+	private int tilesZ;
+	// Row by row, null for tiles where nothing has been written.
+	private byte[][] tiles;
+
+	public TiledCanvas(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.tilesX = (width + TILE_MASK) >> TILE_SHIFT;
+		this.tilesZ = (height + TILE_MASK) >> TILE_SHIFT;
+		long nTiles = (long) tilesX * (long) tilesZ;
+		if (nTiles > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Map is too large: " + width
+					+ "x" + height);
+		}
+		this.tiles = new byte[(int) nTiles][];
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getTilesX() {
+		return tilesX;
+	}
+
+	public int getTilesZ() {
+		return tilesZ;
+	}
+
+	// @return The pixels of the tile, TILE_SIZE * TILE_SIZE, or null if
+	// nothing has been written to it.
+	public byte[] getTile(int tileX, int tileZ) {
+		return tiles[tileX + tileZ * tilesX];
+	}
+
+	private byte[] getOrCreateTile(int x, int z) {
+		int i = (x >> TILE_SHIFT) + (z >> TILE_SHIFT) * tilesX;
+		byte[] tile = tiles[i];
+		if (tile == null) {
+			tile = new byte[TILE_SIZE * TILE_SIZE];
+			tiles[i] = tile;
+		}
+		return tile;
+	}
+
+	public byte get(int x, int z) {
+		byte[] tile = tiles[(x >> TILE_SHIFT) + (z >> TILE_SHIFT) * tilesX];
+		if (tile == null)
+			return 0;
+		return tile[(x & TILE_MASK) + ((z & TILE_MASK) << TILE_SHIFT)];
+	}
+
+	public void set(int x, int z, byte pixel) {
+		byte[] tile = tiles[(x >> TILE_SHIFT) + (z >> TILE_SHIFT) * tilesX];
+		if (tile == null) {
+			if (pixel == 0)
+				return;
+			tile = getOrCreateTile(x, z);
+		}
+		tile[(x & TILE_MASK) + ((z & TILE_MASK) << TILE_SHIFT)] = pixel;
+	}
+
+	public void readRow(int x, int z, byte[] dst, int offset, int len) {
+		int rowStart = (z & TILE_MASK) << TILE_SHIFT;
+		int tileRow = (z >> TILE_SHIFT) * tilesX;
+		while (len > 0) {
+			int n = Math.min(len, TILE_SIZE - (x & TILE_MASK));
+			byte[] tile = tiles[(x >> TILE_SHIFT) + tileRow];
+			if (tile == null) {
+				java.util.Arrays.fill(dst, offset, offset + n, (byte) 0);
+			} else {
+				System.arraycopy(tile, rowStart + (x & TILE_MASK), dst, offset,
+						n);
+			}
+			x += n;
+			offset += n;
+			len -= n;
+		}
+	}
+
+	public void writeRow(int x, int z, byte[] src, int offset, int len) {
+		int rowStart = (z & TILE_MASK) << TILE_SHIFT;
+		int tileRow = (z >> TILE_SHIFT) * tilesX;
+		while (len > 0) {
+			int n = Math.min(len, TILE_SIZE - (x & TILE_MASK));
+			byte[] tile = tiles[(x >> TILE_SHIFT) + tileRow];
+			if (tile == null && !isAllUnexplored(src, offset, n)) {
+				tile = getOrCreateTile(x, z);
+			}
+			if (tile != null) {
+				System.arraycopy(src, offset, tile, rowStart + (x & TILE_MASK),
+						n);
+			}
+			x += n;
+			offset += n;
+			len -= n;
+		}
+	}
+
+	public void writeRowExplored(int x, int z, byte[] src, int offset,
+			int len) {
+		int rowStart = (z & TILE_MASK) << TILE_SHIFT;
+		int tileRow = (z >> TILE_SHIFT) * tilesX;
+		while (len > 0) {
+			int n = Math.min(len, TILE_SIZE - (x & TILE_MASK));
+			byte[] tile = tiles[(x >> TILE_SHIFT) + tileRow];
+			if (tile == null && !isAllUnexplored(src, offset, n)) {
+				tile = getOrCreateTile(x, z);
+			}
+			if (tile != null) {
+				int start = rowStart + (x & TILE_MASK) - offset;
+				for (int i = offset; i < offset + n; ++i) {
+					if (src[i] != 0) {
+						tile[start + i] = src[i];
+					}
+				}
+			}
+			x += n;
+			offset += n;
+			len -= n;
+		}
+	}
+
+	private static boolean isAllUnexplored(byte[] pixels, int offset, int len) {
+		for (int i = offset; i < offset + len; ++i) {
+			if (pixels[i] != 0)
+				return false;
+		}
+		return true;
+	}
+
+	public void clearRect(int beginX, int beginZ, int endX, int endZ) {
+		for (int z = beginZ; z < endZ; ++z) {
+			int rowStart = (z & TILE_MASK) << TILE_SHIFT;
+			int tileRow = (z >> TILE_SHIFT) * tilesX;
+			for (int x = beginX; x < endX;) {
+				int n = Math.min(endX - x, TILE_SIZE - (x & TILE_MASK));
+				byte[] tile = tiles[(x >> TILE_SHIFT) + tileRow];
+				if (tile != null) {
+					int i = rowStart + (x & TILE_MASK);
+					java.util.Arrays.fill(tile, i, i + n, (byte) 0);
+				}
+				x += n;
+			}
+		}
+	}
+
+	// Copies the allocated tiles, the rest of dst is already unexplored.
+	public void copyTo(byte[] dst) {
+		for (int tileZ = 0; tileZ < tilesZ; ++tileZ) {
+			for (int tileX = 0; tileX < tilesX; ++tileX) {
+				byte[] tile = getTile(tileX, tileZ);
+				if (tile == null)
+					continue;
+				int x = tileX << TILE_SHIFT;
+				int z = tileZ << TILE_SHIFT;
+				int n = Math.min(TILE_SIZE, width - x);
+				int rows = Math.min(TILE_SIZE, height - z);
+				for (int row = 0; row < rows; ++row) {
+					System.arraycopy(tile, row << TILE_SHIFT, dst, x + (z + row)
+							* width, n);
+				}
+			}
+		}
+	}
+
+	// Writes one flag for each tile, followed by the pixels of the tile if it
+	// is allocated.
+	public void write(DataOutputStream out) throws IOException {
+		for (byte[] tile : tiles) {
+			out.writeBoolean(tile != null);
+			if (tile != null) {
+				out.write(tile);
+			}
+		}
+	}
+
+	public void read(DataInputStream in) throws IOException {
+		for (int i = 0; i < tiles.length; ++i) {
+			if (in.readBoolean()) {
+				tiles[i] = new byte[TILE_SIZE * TILE_SIZE];
+				in.readFully(tiles[i]);
+			} else {
+				tiles[i] = null;
+			}
+		}
+	}
+
+}